@@ -35,6 +35,58 @@ function lib.endTimedEvent()
     showWarning()
 end
 
+function lib.getEventStats()
+    showWarning()
+end
+
+function lib.setUserId()
+    showWarning()
+end
+
+function lib.setUserProperty()
+    showWarning()
+end
+
+function lib.setSessionProperties()
+    showWarning()
+end
+
+function lib.setDefaultEventParams()
+    showWarning()
+end
+
+function lib.logStandardEvent()
+    showWarning()
+end
+
+function lib.logPayment()
+    showWarning()
+end
+
+function lib.setConsent()
+    showWarning()
+end
+
+function lib.recordMetric()
+    showWarning()
+end
+
+function lib.newEvent( event )
+    showWarning()
+
+    -- handle:log() calls are ignored, so code written for devices runs unchanged
+    return { name = event, log = function() end }
+end
+
+function lib.dumpTrace()
+    showWarning()
+end
+
+function lib.getConfig(key, default)
+    showWarning()
+    return default
+end
+
 -------------------------------------------------------------------------------
 -- END
 -------------------------------------------------------------------------------
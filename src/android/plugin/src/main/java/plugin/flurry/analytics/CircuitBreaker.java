@@ -0,0 +1,183 @@
+//
+// CircuitBreaker.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import com.flurry.android.FlurryEventRecordStatus;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops event logging while the Flurry SDK is disabled or keeps failing.
+ * <p>
+ * The circuit opens when the SDK reports kFlurryEventAnalyticsDisabled, or kFlurryEventFailed several
+ * times in a row. While it is open, allowCall() returns false so calls are dropped before any work is
+ * done, except critical events which the scheduler holds until allowCall() lets them through. After a
+ * backoff one probe call is let through (half-open): a successful result closes the circuit, a failure
+ * opens it again with twice the backoff.
+ * <p>
+ * allowCall() is called from the Lua thread and the scheduler thread, record() from the scheduler thread.
+ */
+final class CircuitBreaker {
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+    static final String[] STATE_NAMES = {"closed", "open", "halfOpen"};
+
+    // consecutive kFlurryEventFailed results that open the circuit
+    private static final int FAILURE_THRESHOLD = 5;
+
+    private static final long INITIAL_BACKOFF_MS = 10000;
+    private static final long MAX_BACKOFF_MS = 600000;
+
+    // another probe is let through if the last one had no result by then (e.g. held back by the upload policy)
+    private static final long PROBE_TIMEOUT_MS = 30000;
+
+    /**
+     * Notified when the circuit opens or closes (not on half-open, or when a probe fails),
+     * on the thread that caused the change.
+     */
+    interface Listener {
+        void onStateChanged(int state, FlurryEventRecordStatus cause, long retryAfterMs);
+    }
+
+    private final Listener listener;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile int state = STATE_CLOSED;
+    private volatile long retryAt;              // set before the state changes to STATE_OPEN
+
+    private int consecutiveFailures = 0;        // scheduler thread only
+
+    // guarded by this
+    private long backoffMs = INITIAL_BACKOFF_MS;
+    private long probeStartedAt = -1;
+
+    CircuitBreaker(Listener listener) {
+        this.listener = listener;
+    }
+
+    int getState() {
+        return state;
+    }
+
+    // calls dropped because allowCall() returned false
+    void countDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns false while calls should be dropped.
+     */
+    boolean allowCall() {
+        if (state == STATE_CLOSED) {
+            return true;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if ((state == STATE_OPEN) && (now < retryAt)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (state == STATE_CLOSED) {
+                return true;
+            }
+
+            if (state == STATE_OPEN) {
+                if (now < retryAt) {
+                    return false;
+                }
+                state = STATE_HALF_OPEN;
+                probeStartedAt = -1;
+            }
+
+            // half-open, one probe at a time
+            if ((probeStartedAt < 0) || ((now - probeStartedAt) >= PROBE_TIMEOUT_MS)) {
+                probeStartedAt = now;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Records the result of an SDK call.
+     */
+    void record(FlurryEventRecordStatus status) {
+        switch (status) {
+            case kFlurryEventAnalyticsDisabled:
+                recordFailure(status, true);
+                break;
+
+            case kFlurryEventFailed:
+                recordFailure(status, false);
+                break;
+
+            default:
+                // recorded, or refused for this event only (the SDK itself works)
+                recordSuccess();
+                break;
+        }
+    }
+
+    private void recordSuccess() {
+        consecutiveFailures = 0;
+        if (state == STATE_CLOSED) {
+            return;
+        }
+
+        synchronized (this) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            state = STATE_CLOSED;
+            backoffMs = INITIAL_BACKOFF_MS;
+        }
+
+        listener.onStateChanged(STATE_CLOSED, null, 0);
+    }
+
+    private void recordFailure(FlurryEventRecordStatus status, boolean shouldOpenNow) {
+        consecutiveFailures++;
+        if ((state == STATE_CLOSED) && !shouldOpenNow && (consecutiveFailures < FAILURE_THRESHOLD)) {
+            return;
+        }
+
+        boolean wasClosed;
+        long retryAfterMs;
+        synchronized (this) {
+            if (state == STATE_OPEN) {
+                // result of an event queued before the circuit opened
+                return;
+            }
+
+            wasClosed = (state == STATE_CLOSED);
+            if (!wasClosed) {
+                // failed probe
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            }
+
+            retryAfterMs = backoffMs;
+            retryAt = SystemClock.elapsedRealtime() + backoffMs;
+            state = STATE_OPEN;
+        }
+        consecutiveFailures = 0;
+
+        if (wasClosed) {
+            listener.onStateChanged(STATE_OPEN, status, retryAfterMs);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+//
+// ConfigSnapshot.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable copy of the activated remote config values, persisted between launches.
+ * <p>
+ * FlurryConfig can't enumerate its values, so a snapshot only contains the keys the app has asked for.
+ * Values are parsed once when the snapshot is created, reads are a single map lookup.
+ */
+final class ConfigSnapshot {
+    // version 1 used writeUTF(), which can't store strings over 64 KB (still read)
+    private static final int FILE_VERSION = 2;
+    private static final int FILE_VERSION_MODIFIED_UTF = 1;
+
+    static final ConfigSnapshot EMPTY = new ConfigSnapshot(Collections.<String, String>emptyMap());
+
+    // a config value with its number and boolean interpretations
+    static final class Value {
+        final String string;
+        final double number;        // NaN if not a number
+        final Boolean bool;         // null unless "true" or "false"
+
+        Value(String string) {
+            this.string = string;
+
+            double number;
+            try {
+                number = Double.parseDouble(string.trim());
+            } catch (NumberFormatException ex) {
+                number = Double.NaN;
+            }
+            this.number = number;
+
+            if (string.equalsIgnoreCase("true")) {
+                bool = Boolean.TRUE;
+            } else if (string.equalsIgnoreCase("false")) {
+                bool = Boolean.FALSE;
+            } else {
+                bool = null;
+            }
+        }
+    }
+
+    private final Map<String, String> strings;
+    private final Map<String, Value> values;
+
+    ConfigSnapshot(Map<String, String> strings) {
+        Map<String, Value> values = new HashMap<>(strings.size() * 2);
+        for (Map.Entry<String, String> entry : strings.entrySet()) {
+            values.put(entry.getKey(), new Value(entry.getValue()));
+        }
+
+        this.strings = Collections.unmodifiableMap(new HashMap<>(strings));
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    // null if the key isn't in the snapshot
+    Value get(String key) {
+        return values.get(key);
+    }
+
+    Set<String> keys() {
+        return strings.keySet();
+    }
+
+    boolean hasSameValues(Map<String, String> other) {
+        return strings.equals(other);
+    }
+
+    /**
+     * Reads a snapshot written by save() with a single read, returns EMPTY if there is none.
+     */
+    static ConfigSnapshot load(File file) {
+        if (!file.exists()) {
+            return EMPTY;
+        }
+
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(bytes);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return EMPTY;
+        } finally {
+            closeQuietly(in);
+        }
+
+        Map<String, String> strings = new HashMap<>();
+        try {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version = data.readInt();
+            if ((version != FILE_VERSION) && (version != FILE_VERSION_MODIFIED_UTF)) {
+                return EMPTY;
+            }
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                if (version == FILE_VERSION_MODIFIED_UTF) {
+                    String key = data.readUTF();
+                    strings.put(key, data.readUTF());
+                } else {
+                    String key = readString(data);
+                    strings.put(key, readString(data));
+                }
+            }
+        } catch (IOException ex) {
+            // truncated or corrupt, start over
+            return EMPTY;
+        }
+
+        return new ConfigSnapshot(strings);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and renames it, so a crash never leaves a partial snapshot.
+     */
+    void save(File file) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean isWritten = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(strings.size());
+            for (Map.Entry<String, String> entry : strings.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            out.close();
+            out = null;
+            isWritten = true;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        if (!isWritten || !tempFile.renameTo(file)) {
+            tempFile.delete();
+        }
+    }
+
+    // length-prefixed UTF-8, unlike writeUTF() there is no 64 KB limit
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if ((length < 0) || (length > in.available())) {
+            throw new IOException("String length past the end of the snapshot");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,826 @@
+//
+// EventScheduler.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Flurry imports
+import com.flurry.android.FlurryEvent;
+
+/**
+ * Routes analytics events into bounded priority lanes and delivers them from a background thread.
+ * <p>
+ * Enqueueing is lock-free as it happens on the Lua thread. The lanes are drained by a single
+ * scheduler thread, critical events first. The scheduler thread only wakes up when there is
+ * something to deliver: the first enqueue after a drain schedules the next one.
+ * <p>
+ * Critical events bypass the rate limit, and when their lane is full the oldest ones move to disk
+ * (newer ones are dropped once MAX_SPILL_FILE_BYTES are waiting there). Spilled events are delivered
+ * before the lane, so critical events keep the order they were logged in. Low priority events are
+ * shed first once the normal lane starts filling up.
+ * <p>
+ * Timed events always take the critical lane: Flurry measures their duration between the start
+ * and end calls, so they can't be rate limited or reordered. For the same reason they are dropped
+ * rather than held while the sink can't deliver.
+ * <p>
+ * While the sink can't deliver (see Sink.canDeliver()), events stay in their lanes (critical events
+ * spill to disk), and the scheduler only checks back every HOLD_CHECK_INTERVAL_MS.
+ * <p>
+ * With an upload policy, non-critical events are held in their lanes until the policy releases
+ * them (or the lanes are about to shed events), and then drained until the lanes are empty.
+ */
+final class EventScheduler {
+    // priorities (also used as lane index)
+    static final int PRIORITY_CRITICAL = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_LOW = 2;
+    static final String[] PRIORITY_NAMES = {"critical", "normal", "low"};
+
+    // event types
+    static final int TYPE_BASIC = 0;
+    static final int TYPE_TIMED_START = 1;
+    static final int TYPE_TIMED_END = 2;
+    static final int TYPE_STANDARD = 3;
+
+    // lane capacities (number of events kept in memory)
+    private static final int CRITICAL_LANE_CAPACITY = 256;
+    private static final int NORMAL_LANE_CAPACITY = 512;
+    private static final int LOW_LANE_CAPACITY = 128;
+
+    // low priority events are rejected once the normal lane is filled above this mark
+    private static final int LOW_PRIORITY_SHED_MARK = NORMAL_LANE_CAPACITY * 3 / 4;
+
+    // delay between an enqueue and the drain, batches events logged close together
+    private static final long DRAIN_DELAY_MS = 100;
+
+    // how often held back events are checked against the upload policy and the sink
+    private static final long HOLD_CHECK_INTERVAL_MS = 1000;
+
+    private static final int MAX_DELIVERIES_PER_DRAIN = 64;
+
+    private static final String SPILL_FILE_NAME = "flurry_critical_events.dat";
+    private static final int SPILL_FILE_VERSION = 2;
+
+    // spill file header: version (int), offset of the first record that hasn't been delivered (long)
+    private static final int SPILL_OFFSET_POSITION = 4;
+    private static final long SPILL_HEADER_SIZE = 12;
+
+    // undelivered bytes kept on disk, newer critical events are dropped beyond this (e.g. analytics stay disabled)
+    private static final long MAX_SPILL_FILE_BYTES = 1024 * 1024;
+
+    /**
+     * Receives events taken off the lanes. Always called on the scheduler thread.
+     */
+    interface Sink {
+        void deliver(PendingEvent event);
+
+        // false while events must be held (e.g. the SDK is disabled), checked before each one
+        // timed events are dropped instead, their duration would be meaningless once delivered
+        boolean canDeliver();
+    }
+
+    /**
+     * An event waiting to be handed to the Flurry SDK.
+     */
+    static final class PendingEvent {
+        final int type;
+        final int priority;
+        final String name;
+        final Map<String, String> params;
+
+        // standard events only
+        final FlurryEvent standardEvent;
+        final StandardEvents.TypedParams typedParams;
+
+        PendingEvent(int type, int priority, String name, Map<String, String> params) {
+            this.type = type;
+            this.priority = priority;
+            this.name = name;
+            this.params = params;
+            this.standardEvent = null;
+            this.typedParams = null;
+        }
+
+        PendingEvent(int priority, FlurryEvent standardEvent, StandardEvents.TypedParams typedParams) {
+            this.type = TYPE_STANDARD;
+            this.priority = priority;
+            this.name = StandardEvents.nameFromEvent(standardEvent);
+            this.params = null;
+            this.standardEvent = standardEvent;
+            this.typedParams = typedParams;
+        }
+
+        boolean isTimed() {
+            return (type == TYPE_TIMED_START) || (type == TYPE_TIMED_END);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(type);
+            out.writeUTF(name);
+
+            if (type == TYPE_STANDARD) {
+                typedParams.writeTo(out);
+                return;
+            }
+
+            out.writeInt(params.size());
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+
+        // returns null for a standard event unknown to the SDK
+        static PendingEvent readFrom(DataInputStream in) throws IOException {
+            int type = in.readInt();
+            String name = in.readUTF();
+
+            if (type == TYPE_STANDARD) {
+                StandardEvents.TypedParams typedParams = StandardEvents.TypedParams.readFrom(in);
+                FlurryEvent standardEvent = StandardEvents.eventFromName(name);
+                if (standardEvent == null) {
+                    // the record is complete, but this SDK version doesn't know the event
+                    return null;
+                }
+                return new PendingEvent(PRIORITY_CRITICAL, standardEvent, typedParams);
+            }
+
+            int count = in.readInt();
+            Map<String, String> params = new Hashtable<>();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                params.put(key, in.readUTF());
+            }
+            return new PendingEvent(type, PRIORITY_CRITICAL, name, params);
+        }
+    }
+
+    // bounded multi-producer queue with lock-free size reservation
+    private static final class Lane {
+        final ConcurrentLinkedQueue<PendingEvent> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicLong dropped = new AtomicLong();
+        final int capacity;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean offer(PendingEvent event, int limit) {
+            int current;
+            do {
+                current = size.get();
+                if (current >= limit) {
+                    return false;
+                }
+            } while (!size.compareAndSet(current, current + 1));
+
+            queue.offer(event);
+            return true;
+        }
+
+        // critical lane only, its capacity is enforced by the scheduler thread (see trimCriticalLane())
+        void add(PendingEvent event) {
+            size.incrementAndGet();
+            queue.offer(event);
+        }
+
+        // scheduler thread only
+        void dropTimedEvents() {
+            Iterator<PendingEvent> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isTimed()) {
+                    iterator.remove();
+                    size.decrementAndGet();
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        PendingEvent poll() {
+            PendingEvent event = queue.poll();
+            if (event != null) {
+                size.decrementAndGet();
+            }
+            return event;
+        }
+    }
+
+    private final Lane[] lanes = new Lane[]{
+            new Lane(CRITICAL_LANE_CAPACITY),
+            new Lane(NORMAL_LANE_CAPACITY),
+            new Lane(LOW_LANE_CAPACITY),
+    };
+
+    // critical events moved from their lane to disk
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    private final Sink sink;
+    private final File spillFile;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean isWakeUpScheduled = new AtomicBoolean(false);
+
+    // holds back non-critical events (null to deliver them right away)
+    private final UploadPolicy uploadPolicy;
+    private boolean isReleasing = false;
+
+    // the sink refused events during the last drain (scheduler thread only)
+    private boolean isSinkHeld = false;
+
+    // token bucket for non-critical events (only touched on the scheduler thread)
+    private final double maxEventsPerSecond;
+    private final double tokenCapacity;         // at least one token, so rates below 1 per second still deliver
+    private double tokens;
+    private long lastRefillNanos;
+
+    EventScheduler(Sink sink, File spillDirectory, double maxEventsPerSecond, UploadPolicy uploadPolicy) {
+        this.sink = sink;
+        this.uploadPolicy = uploadPolicy;
+        this.spillFile = (spillDirectory != null) ? new File(spillDirectory, SPILL_FILE_NAME) : null;
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        this.tokenCapacity = Math.max(1, maxEventsPerSecond);
+        this.tokens = tokenCapacity;
+        this.lastRefillNanos = System.nanoTime();
+
+        executor = Executors.newSingleThreadScheduledExecutor();
+
+        // critical events spilled during the previous run
+        if (hasSpillFile()) {
+            requestDrain(DRAIN_DELAY_MS);
+        }
+    }
+
+    // parse a Lua priority name, returns -1 if invalid
+    static int priorityFromName(String name) {
+        for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+            if (PRIORITY_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queues an event for delivery. Safe to call from any thread, never blocks.
+     *
+     * @return Returns false if the event was dropped.
+     */
+    boolean enqueue(PendingEvent event) {
+        int priority = event.isTimed() ? PRIORITY_CRITICAL : event.priority;
+        Lane lane = lanes[priority];
+
+        switch (priority) {
+            case PRIORITY_CRITICAL:
+                // never refused, the scheduler thread moves the oldest events to disk when the lane is full
+                lane.add(event);
+                break;
+
+            case PRIORITY_LOW:
+                // shed low priority events first when the normal lane is backing up
+                if ((lanes[PRIORITY_NORMAL].size.get() >= LOW_PRIORITY_SHED_MARK) || !lane.offer(event, lane.capacity)) {
+                    lane.dropped.incrementAndGet();
+                    return false;
+                }
+                break;
+
+            default:
+                if (!lane.offer(event, lane.capacity)) {
+                    lane.dropped.incrementAndGet();
+                    return false;
+                }
+                break;
+        }
+
+        requestDrain(DRAIN_DELAY_MS);
+        return true;
+    }
+
+    /**
+     * Returns queue statistics per lane (used in Lua tables).
+     */
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new Hashtable<>();
+
+        for (int i = 0; i < lanes.length; i++) {
+            Map<String, Object> laneStats = new Hashtable<>();
+            laneStats.put("queued", lanes[i].size.get());
+            laneStats.put("dropped", lanes[i].dropped.get());
+            if (i == PRIORITY_CRITICAL) {
+                laneStats.put("spilled", spilledCount.get());
+            }
+            stats.put(PRIORITY_NAMES[i], laneStats);
+        }
+
+        return stats;
+    }
+
+    /**
+     * Delivers all critical events (including the ones spilled to disk) without waiting for the next drain,
+     * and checks held back events against the upload policy right away.
+     */
+    void flushCritical() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainCritical(Integer.MAX_VALUE);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shut down
+        }
+        requestDrain(0);
+    }
+
+    /**
+     * Drops every queued event, including the critical events spilled to disk (consent was withdrawn).
+     * Events already handed to the sink by a drain in progress are not recalled.
+     */
+    void discardAll() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Lane lane : lanes) {
+                        while (lane.poll() != null) {
+                            // discard
+                        }
+                    }
+
+                    if (spillFile != null) {
+                        deleteSpillFiles(spillFile.getParentFile());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shut down
+        }
+    }
+
+    /**
+     * Deletes the critical events spilled to disk by any run, including unreadable files that were set aside.
+     */
+    static void deleteSpillFiles(File spillDirectory) {
+        File[] files = (spillDirectory != null) ? spillDirectory.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.getName().startsWith(SPILL_FILE_NAME)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduler. Critical events that have not been delivered yet are kept on disk for the next launch.
+     */
+    void shutdown() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<PendingEvent> pending = new ArrayList<>();
+                PendingEvent event;
+                while ((event = lanes[PRIORITY_CRITICAL].poll()) != null) {
+                    pending.add(event);
+                }
+                appendToSpillFile(pending);
+            }
+        });
+        executor.shutdown();
+    }
+
+    // schedule a drain unless one is already pending (cheap check first, enqueue calls this every time)
+    private void requestDrain(long delayMs) {
+        if (isDrainScheduled.get() || !isDrainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // events enqueued from here on schedule another drain
+                    isDrainScheduled.set(false);
+                    try {
+                        drain(MAX_DELIVERIES_PER_DRAIN);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                    scheduleFollowUp();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down
+        }
+    }
+
+    // --------------------------------------------------------------------------
+    // scheduler thread
+    // --------------------------------------------------------------------------
+
+    // keep draining while there is work left, otherwise the thread sleeps until the next enqueue
+    private void scheduleFollowUp() {
+        boolean hasCritical = (lanes[PRIORITY_CRITICAL].size.get() > 0) || hasSpillFile();
+        boolean hasOther = (lanes[PRIORITY_NORMAL].size.get() > 0) || (lanes[PRIORITY_LOW].size.get() > 0);
+
+        boolean isOtherReleased = hasOther && ((uploadPolicy == null) || isReleasing);
+
+        refillTokens();
+        if (isSinkHeld) {
+            // the sink refused events, look again later
+            if (hasCritical || hasOther) {
+                scheduleWakeUp(HOLD_CHECK_INTERVAL_MS);
+            }
+        } else if (hasCritical || (isOtherReleased && hasToken())) {
+            requestDrain(DRAIN_DELAY_MS);
+        } else if (isOtherReleased) {
+            // rate limited, sleep until the next token arrives
+            scheduleWakeUp(Math.max(DRAIN_DELAY_MS, getTokenWaitMs()));
+        } else if (hasCritical || hasOther) {
+            // held back by the upload policy, look again later
+            scheduleWakeUp(HOLD_CHECK_INTERVAL_MS);
+        }
+    }
+
+    // drain after delayMs unless a wake-up is already pending (an enqueue may drain earlier)
+    private void scheduleWakeUp(long delayMs) {
+        if (isWakeUpScheduled.getAndSet(true)) {
+            return;
+        }
+
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    isWakeUpScheduled.set(false);
+                    requestDrain(0);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down
+        }
+    }
+
+    private void drain(int budget) {
+        budget -= drainCritical(budget);
+        if (isSinkHeld) {
+            return;
+        }
+
+        if (!isReleasing && (uploadPolicy != null)) {
+            isReleasing = (lanes[PRIORITY_NORMAL].size.get() >= LOW_PRIORITY_SHED_MARK)
+                    || uploadPolicy.shouldRelease(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+            if (!isReleasing) {
+                return;
+            }
+        }
+
+        // non-critical lanes in priority order, subject to the rate limit
+        refillTokens();
+        for (int i = PRIORITY_NORMAL; i < lanes.length; i++) {
+            while ((budget > 0) && hasToken() && (lanes[i].size.get() > 0)) {
+                // stale events would otherwise be extra probes while the sink is half-open
+                if (!sink.canDeliver()) {
+                    isSinkHeld = true;
+                    return;
+                }
+
+                PendingEvent event = lanes[i].poll();
+                if (event == null) {
+                    break;
+                }
+                takeToken();
+                sink.deliver(event);
+                budget--;
+            }
+        }
+
+        // hold again once the burst has been handed over
+        if ((lanes[PRIORITY_NORMAL].size.get() == 0) && (lanes[PRIORITY_LOW].size.get() == 0)) {
+            isReleasing = false;
+        }
+    }
+
+    // returns the number of delivered events
+    private int drainCritical(int budget) {
+        int delivered = 0;
+        Lane lane = lanes[PRIORITY_CRITICAL];
+        isSinkHeld = false;
+
+        // the spill file holds the oldest critical events, the lane continues where it ends
+        if (hasSpillFile()) {
+            delivered += replaySpillFile(budget);
+        }
+
+        if (!isSinkHeld && !hasSpillFile()) {
+            while ((delivered < budget) && (lane.size.get() > 0)) {
+                // only asked when there is an event, the sink may let a single probe event through
+                if (!sink.canDeliver()) {
+                    isSinkHeld = true;
+                    break;
+                }
+
+                PendingEvent event = lane.poll();
+                if (event == null) {
+                    break;
+                }
+                sink.deliver(event);
+                delivered++;
+            }
+        }
+
+        // timed events would get a wrong duration once delivered, only the others are held
+        if (isSinkHeld) {
+            lane.dropTimedEvents();
+        }
+
+        trimCriticalLane();
+        return delivered;
+    }
+
+    // move the oldest events beyond the lane capacity behind the ones already on disk (keeps FIFO order)
+    private void trimCriticalLane() {
+        Lane lane = lanes[PRIORITY_CRITICAL];
+        int excess = lane.size.get() - lane.capacity;
+        if ((excess <= 0) || (spillFile == null)) {
+            // without a spill directory the events stay in memory rather than being lost
+            return;
+        }
+
+        List<PendingEvent> toSpill = new ArrayList<>(excess);
+        PendingEvent event;
+        while ((toSpill.size() < excess) && ((event = lane.poll()) != null)) {
+            toSpill.add(event);
+        }
+        spilledCount.addAndGet(appendToSpillFile(toSpill));
+    }
+
+    private void refillTokens() {
+        if (maxEventsPerSecond <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        tokens = Math.min(tokenCapacity, tokens + (now - lastRefillNanos) * maxEventsPerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+    private boolean hasToken() {
+        return (maxEventsPerSecond <= 0) || (tokens >= 1);
+    }
+
+    // time until the next token arrives, 0 if one is available
+    private long getTokenWaitMs() {
+        if (hasToken()) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) * 1000 / maxEventsPerSecond);
+    }
+
+    private void takeToken() {
+        if (maxEventsPerSecond > 0) {
+            tokens -= 1;
+        }
+    }
+
+    // --------------------------------------------------------------------------
+    // spill file
+    // --------------------------------------------------------------------------
+
+    private boolean hasSpillFile() {
+        return (spillFile != null) && spillFile.exists();
+    }
+
+    // returns the number of events written, the ones that don't fit under MAX_SPILL_FILE_BYTES are dropped
+    private int appendToSpillFile(List<PendingEvent> events) {
+        if (events.isEmpty()) {
+            return 0;
+        }
+
+        if (spillFile == null) {
+            // nowhere to spill to (shutdown without a spill directory)
+            return 0;
+        }
+
+        boolean isNewFile = !spillFile.exists();
+        long available = MAX_SPILL_FILE_BYTES - getPendingSpillBytes();
+        DataOutputStream out = null;
+        int written = 0;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+            if (isNewFile) {
+                out.writeInt(SPILL_FILE_VERSION);
+                out.writeLong(SPILL_HEADER_SIZE);
+            }
+            for (PendingEvent event : events) {
+                if (out.size() >= available) {
+                    break;
+                }
+                event.writeTo(out);
+                written++;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+
+        lanes[PRIORITY_CRITICAL].dropped.addAndGet(events.size() - written);
+        return written;
+    }
+
+    // bytes of the records that haven't been delivered yet, 0 without a (readable) spill file
+    private long getPendingSpillBytes() {
+        if (!hasSpillFile()) {
+            return 0;
+        }
+
+        RandomAccessFile header = null;
+        try {
+            header = new RandomAccessFile(spillFile, "r");
+            header.seek(SPILL_OFFSET_POSITION);
+            return Math.max(0, header.length() - header.readLong());
+        } catch (IOException ex) {
+            return 0;
+        } finally {
+            closeQuietly(header);
+        }
+    }
+
+    /**
+     * Delivers up to 'budget' spilled events, returns the number delivered.
+     * <p>
+     * Records are read sequentially from the offset stored in the header, which is advanced after
+     * each batch, and the file is deleted once every record has been delivered. A record that can't
+     * be parsed is never deleted: the rest of the file is moved aside so later events aren't blocked.
+     */
+    private int replaySpillFile(int budget) {
+        RandomAccessFile header = null;
+        DataInputStream in = null;
+        long offset = SPILL_HEADER_SIZE;
+        long recordEnd = -1;
+        int delivered = 0;
+        boolean isComplete = false;
+
+        try {
+            header = new RandomAccessFile(spillFile, "rw");
+            if (header.readInt() != SPILL_FILE_VERSION) {
+                throw new IOException("Unsupported spill file version");
+            }
+            offset = header.readLong();
+            long length = header.length();
+
+            InputStream fileIn = new FileInputStream(spillFile);
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fileIn));
+            in = new DataInputStream(counter);
+            if ((offset < SPILL_HEADER_SIZE) || (offset > length) || (fileIn.skip(offset) != offset)) {
+                throw new IOException("Spill file offset past the end");
+            }
+
+            recordEnd = offset;
+            while ((delivered < budget) && (recordEnd < length)) {
+                PendingEvent event;
+                try {
+                    event = PendingEvent.readFrom(in);
+                } catch (EOFException ex) {
+                    // truncated record from an interrupted write, nothing can follow it
+                    recordEnd = length;
+                    break;
+                }
+
+                if (event == null) {
+                    recordEnd = offset + counter.count;
+                    continue;
+                }
+
+                // a held record stays on disk (recordEnd isn't advanced), a held timed event is dropped
+                if (!sink.canDeliver()) {
+                    if (!event.isTimed()) {
+                        isSinkHeld = true;
+                        break;
+                    }
+                    lanes[PRIORITY_CRITICAL].dropped.incrementAndGet();
+                } else {
+                    sink.deliver(event);
+                    delivered++;
+                }
+                recordEnd = offset + counter.count;
+            }
+            isComplete = (recordEnd >= length);
+
+            if (!isComplete) {
+                header.seek(SPILL_OFFSET_POSITION);
+                header.writeLong(recordEnd);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+
+            // remember what was delivered, keep the records that couldn't be read
+            if ((header != null) && (recordEnd > offset)) {
+                try {
+                    header.seek(SPILL_OFFSET_POSITION);
+                    header.writeLong(recordEnd);
+                } catch (IOException ignored) {
+                    // the moved file may repeat a few delivered events
+                }
+            }
+            closeQuietly(in);
+            closeQuietly(header);
+            in = null;
+            header = null;
+
+            File unreadableFile = new File(spillFile.getPath() + ".unreadable-" + System.currentTimeMillis());
+            //noinspection ResultOfMethodCallIgnored
+            spillFile.renameTo(unreadableFile);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(header);
+        }
+
+        if (isComplete) {
+            //noinspection ResultOfMethodCallIgnored
+            spillFile.delete();
+        }
+
+        return delivered;
+    }
+
+    // counts the bytes consumed by the DataInputStream on top of it
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
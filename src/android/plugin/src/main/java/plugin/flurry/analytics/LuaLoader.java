@@ -24,18 +24,32 @@ import com.naef.jnlua.JavaFunction;
 import com.naef.jnlua.LuaType;
 import com.naef.jnlua.NamedJavaFunction;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.util.Log;
 
 // Flurry imports
 import com.flurry.android.FlurryAgent;
 import com.flurry.android.FlurryAgentListener;
+import com.flurry.android.FlurryConfig;
+import com.flurry.android.FlurryConfigListener;
+import com.flurry.android.FlurryEvent;
 import com.flurry.android.FlurryEventRecordStatus;
+import com.flurry.android.FlurryPerformance;
 
 /**
  * Implements the Lua interface for the Flurry Plugin.
@@ -54,12 +68,61 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     // analytics types
     private static final String ANALYTICS_TYPE_BASIC = "basic";
     private static final String ANALYTICS_TYPE_TIMED = "timed";
+    private static final String ANALYTICS_TYPE_STANDARD = "standard";
+
+    // remote config event type
+    private static final String EVENT_TYPE_CONFIG = "config";
 
     // Log levels
+    private static final String LOGLEVEL_NONE = "none";
     private static final String LOGLEVEL_DEFAULT = "default";
     private static final String LOGLEVEL_DEBUG = "debug";
     private static final String LOGLEVEL_ALL = "all";
 
+    // consent states (indexes into CONSENT_NAMES)
+    private static final int CONSENT_UNKNOWN = 0;
+    private static final int CONSENT_GRANTED = 1;
+    private static final int CONSENT_DENIED = 2;
+    private static final String[] CONSENT_NAMES = {"unknown", "granted", "denied"};
+
+    // session and upload defaults
+    private static final long DEFAULT_SESSION_CONTINUE_MS = 5000;
+    private static final long DEFAULT_MAX_UPLOAD_DELAY_MS = 300000;
+
+    // performance metrics option values
+    private static final String PERFORMANCE_METRICS_NONE = "none";
+    private static final String PERFORMANCE_METRICS_COLD_START = "coldStart";
+    private static final String PERFORMANCE_METRICS_SCREEN_TIME = "screenTime";
+    private static final String PERFORMANCE_METRICS_ALL = "all";
+
+    // metric summaries are logged this often unless set by the metricsFlushInterval option
+    private static final long DEFAULT_METRICS_FLUSH_INTERVAL_MS = 60000;
+
+    // calls buffered while consent is unknown
+    private static final int CONSENT_BUFFER_CAPACITY = 200;
+
+    // last activated remote config values (in the app's files dir)
+    private static final String CONFIG_SNAPSHOT_FILE_NAME = "flurry_config_snapshot.dat";
+
+    // trace entries kept when the traceEnabled init option is set (oldest entries are overwritten)
+    private static final int TRACE_BUFFER_CAPACITY = 8192;
+
+    // trace entry names for SDK calls and event dispatch
+    private static final int TRACE_SDK_BUILD = TraceBuffer.registerName("FlurryAgent.Builder.build");
+    private static final int TRACE_SDK_LOG_EVENT = TraceBuffer.registerName("FlurryAgent.logEvent");
+    private static final int TRACE_SDK_END_TIMED_EVENT = TraceBuffer.registerName("FlurryAgent.endTimedEvent");
+    private static final int TRACE_SDK_SET_USER_ID = TraceBuffer.registerName("FlurryAgent.setUserId");
+    private static final int TRACE_SDK_USER_PROPERTIES = TraceBuffer.registerName("FlurryAgent.UserProperties");
+    private static final int TRACE_SDK_SESSION_PROPERTIES = TraceBuffer.registerName("FlurryAgent.addSessionProperty");
+    private static final int TRACE_SDK_ON_ERROR = TraceBuffer.registerName("FlurryAgent.onError");
+    private static final int TRACE_SDK_PRIVACY_DASHBOARD = TraceBuffer.registerName("FlurryAgent.openPrivacyDashboard");
+    private static final int TRACE_SDK_FETCH_CONFIG = TraceBuffer.registerName("FlurryConfig.fetchConfig");
+    private static final int TRACE_SDK_ACTIVATE_CONFIG = TraceBuffer.registerName("FlurryConfig.activateConfig");
+    private static final int TRACE_SDK_CONFIG_GET_STRING = TraceBuffer.registerName("FlurryConfig.getString");
+    private static final int TRACE_DISPATCH_ENQUEUE = TraceBuffer.registerName("dispatchLuaEvent");
+    private static final int TRACE_DISPATCH_EXECUTE = TraceBuffer.registerName("executeUsing");
+    private static final int TRACE_EVENT_HANDLE = TraceBuffer.registerName("handle:log");
+
     // data keys
     private static final String ERRORCODE_KEY = "errorCode";
     private static final String REASON_KEY = "reason";
@@ -71,7 +134,18 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     private static final String EVENT_TYPE_KEY = "type";
 
     private static final String PARAMS_KEY = "params";
+    private static final String PRIORITY_KEY = "priority";
+
+    // Flurry accepts at most 10 params per event
+    private static final int MAX_EVENT_PARAMS = StandardEvents.MAX_PARAMS;
+
+    // params required by logPayment()
+    private static final String[] PAYMENT_REQUIRED_PARAMS = {"itemId", "price", "currencyType"};
     private static final String SESSION_ID_KEY = "sessionId";
+    private static final String IS_CACHE_KEY = "isCache";
+    private static final String IS_RETRYING_KEY = "isRetrying";
+    private static final String CIRCUIT_STATE_KEY = "state";
+    private static final String RETRY_AFTER_KEY = "retryAfter";
     private static final String ERROR_DETAILS_MSG = "See event.data for error details";
 
     // callback delegate event phases
@@ -80,11 +154,14 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     private static final String PHASE_RECORDED = "recorded";
     private static final String PHASE_BEGAN = "began";
     private static final String PHASE_ENDED = "ended";
+    private static final String PHASE_ACTIVATED = "activated";
+    private static final String PHASE_CIRCUIT_CHANGED = "circuitChanged";
 
     // message constants
     private static final String CORONA_TAG = "Corona";
     private static final String ERROR_MSG = "ERROR: ";
     private static final String WARNING_MSG = "WARNING: ";
+    private static final String DEBUG_MSG = "DEBUG: ";
 
     private static int coronaListener = CoronaLua.REFNIL;
     private static CoronaRuntimeTaskDispatcher coronaRuntimeTaskDispatcher = null;
@@ -92,8 +169,30 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     private static boolean hasReceivedInit = false;                     // true after 'init' event has been received from Flurry servers
     private static ScheduledExecutorService initLoopExecutor = null;    // monitors when an 'init' event can be sent
     private static boolean isCrashReportingEnabled = false;
+    private static boolean isIAPReportingEnabled = false;
     private static FlurryUnhandledErrorListener flurryUnhandledErrorListener = null;
     private static String functionSignature = "";
+    private static final PluginLogger logger = new PluginLogger(CORONA_TAG);
+    private static volatile int consentState = CONSENT_GRANTED;
+    private static Runnable deferredSDKStart = null;                    // SDK start postponed until consent is granted
+    private static final List<Runnable> consentBuffer = new ArrayList<>();
+    private static volatile boolean isConsentBufferActive = false;      // true until the 'init' event (changed under consentBuffer lock)
+    private static double maxEventsPerSecond = 0;                       // rate limit for non-critical events (0 = unlimited)
+    private static EventScheduler eventScheduler = null;                // priority lanes between Lua and the Flurry SDK
+    private static UploadPolicy uploadPolicy = null;                    // set when non-critical events are deferred
+    private static volatile MetricRecorder metricRecorder = null;       // quantile sketches for recordMetric()
+    private static long metricsFlushIntervalMs = DEFAULT_METRICS_FLUSH_INTERVAL_MS; // 0 = only flushed on suspend
+    private static volatile ScheduledExecutorService metricsExecutor = null; // logs the metric summaries off the Lua thread
+    private static final AtomicBoolean isMetricsFlushScheduled = new AtomicBoolean();
+    private static volatile CircuitBreaker circuitBreaker = null;       // drops event calls while the SDK is disabled or failing
+    private static volatile Map<String, String> defaultEventParams = Collections.emptyMap(); // immutable, replaced as a whole
+    private static volatile TraceBuffer traceBuffer = null;             // set by the traceEnabled init option
+    private static volatile ConfigSnapshot configSnapshot = ConfigSnapshot.EMPTY; // immutable, replaced as a whole
+    private static final Set<String> configKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); // keys kept in the snapshot
+    private static volatile File configSnapshotFile = null;             // set when remote config is enabled (configKeys init option)
+    private static volatile ExecutorService configExecutor = null;      // refreshes the snapshot off the UI thread
+    private static volatile boolean hasActivatedConfig = false;         // FlurryConfig has values to copy
+    private static FlurryConfigListener configListener = null;
 
     /**
      * <p>
@@ -130,7 +229,25 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 new StartTimedEvent(),
                 new EndTimedEvent(),
                 new OpenPrivacyDashboard(),
+                new GetEventStats(),
+                new SetUserId(),
+                new SetUserProperty(),
+                new SetSessionProperties(),
+                new SetDefaultEventParams(),
+                new LogStandardEvent(),
+                new LogPayment(),
+                new SetConsent(),
+                new RecordMetric(),
+                new NewEvent(),
+                new DumpTrace(),
+                new GetConfig(),
         };
+
+        // every exported function is timed while tracing is enabled
+        for (int i = 0; i < luaFunctions.length; i++) {
+            luaFunctions[i] = new TracedFunction(luaFunctions[i]);
+        }
+
         String libName = L.toString(1);
         L.register(libName, luaFunctions);
 
@@ -180,6 +297,18 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
      */
     @Override
     public void onSuspended(CoronaRuntime runtime) {
+        // the process may not come back, log what the metrics have collected so far
+        flushMetrics();
+
+        // app is idle, release deferred events
+        if (uploadPolicy != null) {
+            uploadPolicy.setAppIdle(true);
+        }
+
+        // don't leave critical events sitting in memory while the app is in the background
+        if (eventScheduler != null) {
+            eventScheduler.flushCritical();
+        }
     }
 
     /**
@@ -191,6 +320,9 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
      */
     @Override
     public void onResumed(CoronaRuntime runtime) {
+        if (uploadPolicy != null) {
+            uploadPolicy.setAppIdle(false);
+        }
     }
 
     /**
@@ -214,24 +346,119 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         coronaRuntimeTaskDispatcher = null;
 
         isCrashReportingEnabled = false;
+        isIAPReportingEnabled = false;
         flurryUnhandledErrorListener = null;
         functionSignature = "";
+        logger.setLevel(PluginLogger.LEVEL_WARNING);
         hasReceivedInit = false;
         initLoopExecutor = null;
+        maxEventsPerSecond = 0;
+        defaultEventParams = Collections.emptyMap();
+        traceBuffer = null;
+
+        if (eventScheduler != null) {
+            eventScheduler.shutdown();
+            eventScheduler = null;
+        }
+
+        metricRecorder = null;
+        metricsFlushIntervalMs = DEFAULT_METRICS_FLUSH_INTERVAL_MS;
+        if (metricsExecutor != null) {
+            metricsExecutor.shutdown();
+            metricsExecutor = null;
+        }
+        isMetricsFlushScheduled.set(false);
+        uploadPolicy = null;
+        circuitBreaker = null;
+
+        if (configListener != null) {
+            FlurryConfig.getInstance().unregisterListener(configListener);
+            configListener = null;
+        }
+        ExecutorService executor = configExecutor;
+        configExecutor = null;
+        if (executor != null) {
+            executor.shutdown();
+        }
+        configSnapshotFile = null;
+        configSnapshot = ConfigSnapshot.EMPTY;
+        configKeys.clear();
+        hasActivatedConfig = false;
+
+        consentState = CONSENT_GRANTED;
+        deferredSDKStart = null;
+        synchronized (consentBuffer) {
+            consentBuffer.clear();
+            isConsentBufferActive = false;
+        }
     }
 
     // --------------------------------------------------------------------------
     // helper functions
     // --------------------------------------------------------------------------
 
-    // log message to console
-    private void logMsg(String msgType, String errorMsg) {
-        String functionID = functionSignature;
-        if (!functionID.isEmpty()) {
-            functionID += ", ";
+    // log message to console (the message is only formatted if the log level allows it)
+    private void logMsg(String msgType, String format) {
+        if (logger.isLoggable(getMsgLevel(msgType))) {
+            logger.log(msgType, functionSignature, format);
+        }
+    }
+
+    private void logMsg(String msgType, String format, Object arg) {
+        if (logger.isLoggable(getMsgLevel(msgType))) {
+            logger.log(msgType, functionSignature, format, arg);
+        }
+    }
+
+    private void logMsg(String msgType, String format, Object arg1, Object arg2) {
+        if (logger.isLoggable(getMsgLevel(msgType))) {
+            logger.log(msgType, functionSignature, format, arg1, arg2);
+        }
+    }
+
+    private int getMsgLevel(String msgType) {
+        return msgType.equals(DEBUG_MSG) ? PluginLogger.LEVEL_DEBUG : PluginLogger.LEVEL_WARNING;
+    }
+
+    // parse a consent name, returns -1 if invalid
+    private static int consentFromName(String name) {
+        for (int i = 0; i < CONSENT_NAMES.length; i++) {
+            if (CONSENT_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // return FlurryPerformance flags for the performanceMetrics init option, or -1 if invalid
+    private int getPerformanceMetrics(String performanceMetrics) {
+        switch (performanceMetrics) {
+            case PERFORMANCE_METRICS_NONE:
+                return FlurryPerformance.NONE;
+            case PERFORMANCE_METRICS_COLD_START:
+                return FlurryPerformance.COLD_START;
+            case PERFORMANCE_METRICS_SCREEN_TIME:
+                return FlurryPerformance.SCREEN_TIME;
+            case PERFORMANCE_METRICS_ALL:
+                return FlurryPerformance.ALL;
+            default:
+                return -1;
         }
+    }
 
-        Log.i(CORONA_TAG, msgType + functionID + errorMsg);
+    // return plugin log level for the logLevel init option, or -1 if invalid
+    private int getLoggerLevel(String logLevel) {
+        switch (logLevel) {
+            case LOGLEVEL_NONE:
+                return PluginLogger.LEVEL_NONE;
+            case LOGLEVEL_DEFAULT:
+                return PluginLogger.LEVEL_WARNING;
+            case LOGLEVEL_DEBUG:
+            case LOGLEVEL_ALL:
+                return PluginLogger.LEVEL_DEBUG;
+            default:
+                return -1;
+        }
     }
 
     // return true if SDK is properly initialized
@@ -249,6 +476,327 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         return true;
     }
 
+    // convert a Lua table at the given index to a map of strings, returns null if a key or value isn't a string
+    private Map<String, String> toStringMap(LuaState L, int index) {
+        Map<String, String> map = new Hashtable<>();
+        Map<Object, Object> tableData = CoronaLua.toHashtable(L, index);
+
+        for (Object key : tableData.keySet()) {
+            Object value = tableData.get(key);
+            if (!(key instanceof String) || !(value instanceof String)) {
+                logMsg(ERROR_MSG, "Value for key '%s' must be a string", key);
+                return null;
+            }
+            map.put((String) key, (String) value);
+        }
+
+        return map;
+    }
+
+    // read options.priority from the table at the given index, returns -1 if invalid
+    private int getPriorityOption(LuaState L, int index, int defaultPriority) {
+        if (L.isNoneOrNil(index)) {
+            return defaultPriority;
+        }
+
+        if (L.type(index) != LuaType.TABLE) {
+            logMsg(ERROR_MSG, "options table expected, got %s", L.typeName(index));
+            return -1;
+        }
+
+        int priority = defaultPriority;
+        L.getField(index, PRIORITY_KEY);
+        if (!L.isNoneOrNil(-1)) {
+            priority = (L.type(-1) == LuaType.STRING) ? EventScheduler.priorityFromName(L.toString(-1)) : -1;
+            if (priority < 0) {
+                logMsg(ERROR_MSG, "options.priority must be 'critical', 'normal' or 'low'");
+            }
+        }
+        L.pop(1);
+
+        return priority;
+    }
+
+    // read a params table with typed values, returns null on error
+    private StandardEvents.TypedParams toTypedParams(LuaState L, int index) {
+        StandardEvents.TypedParams params = new StandardEvents.TypedParams();
+
+        for (L.pushNil(); L.next(index); L.pop(1)) {
+            if (L.type(-2) != LuaType.STRING) {
+                logMsg(ERROR_MSG, "params keys must be strings, got %s", L.typeName(-2));
+                L.pop(2);
+                return null;
+            }
+
+            String key = L.toString(-2);
+            int result;
+
+            switch (L.type(-1)) {
+                case STRING:
+                    result = params.putString(key, L.toString(-1));
+                    break;
+                case NUMBER:
+                    result = params.putNumber(key, L.toNumber(-1));
+                    break;
+                case BOOLEAN:
+                    result = params.putBoolean(key, L.toBoolean(-1));
+                    break;
+                default:
+                    logMsg(ERROR_MSG, "Param '%s' must be a string, number or boolean, got %s", key, L.typeName(-1));
+                    L.pop(2);
+                    return null;
+            }
+
+            if (result != StandardEvents.PUT_OK) {
+                switch (result) {
+                    case StandardEvents.PUT_WRONG_TYPE:
+                        logMsg(ERROR_MSG, "Param '%s' must be a %s", key, StandardEvents.TypedParams.expectedType(key));
+                        break;
+                    case StandardEvents.PUT_NOT_AN_INTEGER:
+                        logMsg(ERROR_MSG, "Param '%s' must be an integer", key);
+                        break;
+                    default:
+                        logMsg(ERROR_MSG, "Expected at most %d params", StandardEvents.MAX_PARAMS);
+                        break;
+                }
+                L.pop(2);
+                return null;
+            }
+        }
+
+        return params;
+    }
+
+    // merge the default event params into params (explicit params take precedence)
+    private Map<String, String> mergeDefaultParams(Map<String, String> params) {
+        Map<String, String> defaults = defaultEventParams;
+
+        // no copies needed when only one side has params
+        if (defaults.isEmpty()) {
+            return params;
+        }
+        if (params.isEmpty()) {
+            return defaults;
+        }
+
+        Map<String, String> merged = new Hashtable<>(params);
+        for (Map.Entry<String, String> entry : defaults.entrySet()) {
+            if (merged.containsKey(entry.getKey())) {
+                continue;
+            }
+            if (merged.size() >= MAX_EVENT_PARAMS) {
+                logMsg(WARNING_MSG, "Event has more than %d params with defaults, some default params were skipped", MAX_EVENT_PARAMS);
+                break;
+            }
+            merged.put(entry.getKey(), entry.getValue());
+        }
+
+        return merged;
+    }
+
+    // start time for traceEnd(), 0 if tracing is disabled
+    private static long traceStart() {
+        return (traceBuffer != null) ? System.nanoTime() : 0;
+    }
+
+    // add a trace entry for a call started at traceStart()
+    private static void traceEnd(int nameId, long start) {
+        TraceBuffer trace = traceBuffer;
+        if ((trace != null) && (start != 0)) {
+            trace.record(nameId, start, System.nanoTime() - start);
+        }
+    }
+
+    // return true while event calls are dropped by the circuit breaker (lets a probe call through when half-open)
+    // critical events skip this check, the scheduler holds them until the circuit lets them through
+    private static boolean isCircuitOpen() {
+        CircuitBreaker breaker = circuitBreaker;
+        if ((breaker == null) || breaker.allowCall()) {
+            return false;
+        }
+
+        breaker.countDropped();
+        return true;
+    }
+
+    // return true if the options table at index asks for critical priority (invalid options are reported later)
+    private static boolean isCriticalOption(LuaState L, int index) {
+        if (L.type(index) != LuaType.TABLE) {
+            return false;
+        }
+
+        L.getField(index, PRIORITY_KEY);
+        boolean isCritical = (L.type(-1) == LuaType.STRING)
+                && (EventScheduler.priorityFromName(L.toString(-1)) == EventScheduler.PRIORITY_CRITICAL);
+        L.pop(1);
+
+        return isCritical;
+    }
+
+    // return true if a recording call can proceed (calls are buffered while waiting for consent)
+    private boolean canRecord() {
+        if (isConsentBufferActive) {
+            if (coronaListener == CoronaLua.REFNIL) {
+                logMsg(ERROR_MSG, "You must call flurry.init() before calling other Flurry API functions");
+                return false;
+            }
+            return true;
+        }
+
+        return isSDKInitialized();
+    }
+
+    // run an SDK call now, or keep it until the SDK can record it (see flushConsentBuffer())
+    private void runOrDefer(Runnable action) {
+        synchronized (consentBuffer) {
+            if (isConsentBufferActive) {
+                if (consentBuffer.size() < CONSENT_BUFFER_CAPACITY) {
+                    consentBuffer.add(action);
+                } else {
+                    logMsg(WARNING_MSG, "Consent buffer is full (%d calls), call dropped", CONSENT_BUFFER_CAPACITY);
+                }
+                return;
+            }
+        }
+
+        action.run();
+    }
+
+    // queue an event, or keep it until the SDK can record it
+    private void submitEvent(final EventScheduler.PendingEvent event) {
+        // lock-free once the SDK runs, runOrDefer() re-checks under the lock
+        if (!isConsentBufferActive) {
+            eventScheduler.enqueue(event);
+            return;
+        }
+
+        runOrDefer(new Runnable() {
+            @Override
+            public void run() {
+                eventScheduler.enqueue(event);
+            }
+        });
+    }
+
+    // flush the metrics one interval after the first sample since the last flush (no timer runs while idle)
+    private void scheduleMetricsFlush() {
+        ScheduledExecutorService executor = metricsExecutor;
+        if ((executor == null) || isMetricsFlushScheduled.get() || !isMetricsFlushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // samples recorded from here on schedule another flush
+                    isMetricsFlushScheduled.set(false);
+                    MetricRecorder recorder = metricRecorder;
+                    if (!flushMetrics() && (recorder != null) && recorder.hasSamples()) {
+                        // held back (e.g. by the circuit breaker), try again later
+                        scheduleMetricsFlush();
+                    }
+                }
+            }, metricsFlushIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // plugin is shutting down
+        }
+    }
+
+    // log a summary event per metric and reset the sketches, returns false if the metrics were kept
+    private boolean flushMetrics() {
+        MetricRecorder recorder = metricRecorder;
+        if ((recorder == null) || (consentState == CONSENT_DENIED)) {
+            return false;
+        }
+
+        // keep aggregating until event logging works again
+        CircuitBreaker breaker = circuitBreaker;
+        if ((breaker != null) && (breaker.getState() != CircuitBreaker.STATE_CLOSED)) {
+            return false;
+        }
+
+        // SDK not started and not buffering (e.g. after a failed init)
+        if ((eventScheduler == null) && !isConsentBufferActive) {
+            return false;
+        }
+
+        Map<String, Map<String, String>> summaries = recorder.flush();
+        for (Map.Entry<String, Map<String, String>> entry : summaries.entrySet()) {
+            Map<String, String> params = mergeDefaultParams(entry.getValue());
+            submitEvent(new EventScheduler.PendingEvent(EventScheduler.TYPE_BASIC, EventScheduler.PRIORITY_NORMAL, entry.getKey(), params));
+        }
+
+        return true;
+    }
+
+    // copy the values of all requested keys from FlurryConfig into a new snapshot (on the config thread)
+    private void scheduleConfigRefresh(final boolean isActivation, final boolean isCache) {
+        ExecutorService executor = configExecutor;
+        if (executor == null) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    FlurryConfig config = FlurryConfig.getInstance();
+                    Map<String, String> values = new Hashtable<>();
+
+                    long traceStart = traceStart();
+                    for (String key : configKeys) {
+                        String value = config.getString(key, null);
+                        if (value != null) {
+                            values.put(key, value);
+                        }
+                    }
+                    traceEnd(TRACE_SDK_CONFIG_GET_STRING, traceStart);
+
+                    if (!configSnapshot.hasSameValues(values)) {
+                        ConfigSnapshot snapshot = new ConfigSnapshot(values);
+                        configSnapshot = snapshot;
+
+                        File file = configSnapshotFile;
+                        if (file != null) {
+                            snapshot.save(file);
+                        }
+                    }
+
+                    if (isActivation) {
+                        Map<String, Object> eventData = new Hashtable<>();
+                        eventData.put(IS_CACHE_KEY, isCache);
+
+                        Map<String, Object> coronaEvent = new Hashtable<>();
+                        coronaEvent.put(EVENT_TYPE_KEY, EVENT_TYPE_CONFIG);
+                        coronaEvent.put(EVENT_PHASE_KEY, PHASE_ACTIVATED);
+                        coronaEvent.put(EVENT_DATA_KEY, eventData);
+
+                        dispatchLuaEvent(coronaEvent);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // plugin is shutting down
+        }
+    }
+
+    // replay the calls buffered while waiting for consent (called just before the 'init' event)
+    // runs under the lock so that direct calls wait in runOrDefer() until the older buffered ones are done
+    private void flushConsentBuffer() {
+        synchronized (consentBuffer) {
+            if (!isConsentBufferActive) {
+                return;
+            }
+
+            for (Runnable action : consentBuffer) {
+                action.run();
+            }
+            consentBuffer.clear();
+            isConsentBufferActive = false;
+        }
+    }
+
     // return map for flurry return status (used in lua event data)
     private Map<String, Object> getDataFromStatus(FlurryEventRecordStatus status) {
         Map<String, Object> dict = new Hashtable<>();
@@ -304,6 +852,9 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         if ((sessionId != null) && (!sessionId.equals("0")) && (!hasReceivedInit)) {
             hasReceivedInit = true;
 
+            // calls made while consent was unknown, they stay buffered until the SDK can record them
+            flushConsentBuffer();
+
             // create data
             Map<String, Object> eventData = new Hashtable<>();
             eventData.put(SESSION_ID_KEY, sessionId);
@@ -320,8 +871,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     // dispatch a Lua event to our callback (dynamic handling of properties through map)
     private void dispatchLuaEvent(final Map<String, Object> event) {
         if (coronaRuntimeTaskDispatcher != null) {
+            long enqueueStart = traceStart();
             coronaRuntimeTaskDispatcher.send(new CoronaRuntimeTask() {
                 public void executeUsing(CoronaRuntime runtime) {
+                    long executeStart = traceStart();
                     try {
                         LuaState L = runtime.getLuaState();
                         CoronaLua.newEvent(L, EVENT_NAME);
@@ -351,8 +904,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                     } catch (Exception ex) {
                         ex.printStackTrace();
                     }
+                    traceEnd(TRACE_DISPATCH_EXECUTE, executeStart);
                 }
             });
+            traceEnd(TRACE_DISPATCH_ENQUEUE, enqueueStart);
         }
     }
 
@@ -390,7 +945,9 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 }
                 luaState.pop(1);
 
+                long traceStart = traceStart();
                 FlurryAgent.onError(errorMsg, stackTrace, (Throwable) null);
+                traceEnd(TRACE_SDK_ON_ERROR, traceStart);
             }
 
             // let the event fall through to Corona
@@ -399,6 +956,74 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         }
     }
 
+    // Pre-validated event returned by newEvent(), logged with handle:log(values...)
+    private class EventHandle implements JavaFunction {
+        private final String eventName;
+        private final String[] paramKeys;
+        private final int priority;
+        private final String logSignature;
+
+        public EventHandle(String eventName, String[] paramKeys, int priority) {
+            this.eventName = eventName;
+            this.paramKeys = paramKeys;
+            this.priority = priority;
+            this.logSignature = "handle:log(values) for event '" + eventName + "'";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            long traceStart = traceStart();
+            functionSignature = logSignature;
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            if ((priority != EventScheduler.PRIORITY_CRITICAL) && isCircuitOpen()) {
+                return 0;
+            }
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            // index 1 is the handle itself, values follow in the order of the registered keys (nil skips a param)
+            Map<String, String> params = new Hashtable<>(paramKeys.length);
+            int valueCount = Math.min(luaState.getTop() - 1, paramKeys.length);
+            for (int i = 0; i < valueCount; i++) {
+                int index = i + 2;
+                switch (luaState.type(index)) {
+                    case STRING:
+                    case NUMBER:
+                        params.put(paramKeys[i], luaState.toString(index));      // numbers are converted by Lua
+                        break;
+                    case BOOLEAN:
+                        params.put(paramKeys[i], luaState.toBoolean(index) ? "true" : "false");
+                        break;
+                    case NIL:
+                        break;
+                    default:
+                        logMsg(ERROR_MSG, "Value for '%s' must be a string, number or boolean, got %s", paramKeys[i], luaState.typeName(index));
+                        return 0;
+                }
+            }
+
+            submitEvent(new EventScheduler.PendingEvent(EventScheduler.TYPE_BASIC, priority, eventName, mergeDefaultParams(params)));
+            traceEnd(TRACE_EVENT_HANDLE, traceStart);
+
+            return 0;
+        }
+    }
+
     // Worker function for logEvent, logTimedEvent and endTimedEvent
     final class LogEventWorker {
         LuaState luaState = null;
@@ -412,19 +1037,32 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         }
 
         public void doWork() {
-            if (!isSDKInitialized()) {
+            // nothing is converted or recorded without consent
+            if (consentState == CONSENT_DENIED) {
+                return;
+            }
+
+            // nor while the SDK is disabled or keeps failing (the listener got a circuitChanged event)
+            // critical events are held by the scheduler instead, timed events are dropped as their duration would be off
+            boolean isCritical = !isTimed && !shouldEndTimedEvent && isCriticalOption(luaState, 3);
+            if (!isCritical && isCircuitOpen()) {
+                return;
+            }
+
+            if (!canRecord()) {
                 return;
             }
 
             // check number of args
             int nargs = luaState.getTop();
-            if ((nargs < 1) || (nargs > 2)) {
-                logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got " + nargs);
+            if ((nargs < 1) || (nargs > 3)) {
+                logMsg(ERROR_MSG, "Expected 1 to 3 arguments, got %d", nargs);
                 return;
             }
 
             Map<String, String> params = new Hashtable<>();
             String eventName;
+            int priority = EventScheduler.PRIORITY_NORMAL;
 
             final LuaState L = luaState;
 
@@ -432,7 +1070,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             if (L.type(1) == LuaType.STRING) {
                 eventName = L.toString(1);
             } else {
-                logMsg(ERROR_MSG, "eventName (string) expected, got " + L.typeName(1));
+                logMsg(ERROR_MSG, "eventName (string) expected, got %s", L.typeName(1));
                 return;
             }
 
@@ -445,22 +1083,67 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                     for (Object key : paramsData.keySet()) {
                         Object value = paramsData.get(key);
                         if (!(value instanceof String)) {
-                            logMsg(ERROR_MSG, "Options value for key '" + key + "' must be a string");
+                            logMsg(ERROR_MSG, "Options value for key '%s' must be a string", key);
                             return;
                         }
                         params.put((String) key, (String) value);
                     }
                 } else {
-                    logMsg(ERROR_MSG, "Options table expected, got " + L.typeName(2));
+                    logMsg(ERROR_MSG, "Options table expected, got %s", L.typeName(2));
                     return;
                 }
             }
 
+            // default params apply to logged and started events (ending a timed event only updates its params)
+            if (!shouldEndTimedEvent) {
+                params = mergeDefaultParams(params);
+            }
+
+            // get options table (optional)
+            priority = getPriorityOption(L, 3, priority);
+            if (priority < 0) {
+                return;
+            }
+
+            int type = EventScheduler.TYPE_BASIC;
+            if (shouldEndTimedEvent) {
+                type = EventScheduler.TYPE_TIMED_END;
+            } else if (isTimed) {
+                type = EventScheduler.TYPE_TIMED_START;
+            }
+
+            // hand over to the scheduler (drops are counted per lane)
+            submitEvent(new EventScheduler.PendingEvent(type, priority, eventName, params));
+        }
+    }
+
+    // Delivers queued events to the Flurry SDK and reports the result to Lua (runs on the scheduler thread)
+    private class FlurryEventSink implements EventScheduler.Sink {
+        @Override
+        public void deliver(EventScheduler.PendingEvent event) {
+            // consent was withdrawn after the event was queued
+            if (consentState == CONSENT_DENIED) {
+                return;
+            }
+
+            if (event.type == EventScheduler.TYPE_STANDARD) {
+                deliverStandardEvent(event);
+                return;
+            }
+
+            String eventName = event.name;
+            Map<String, String> params = event.params;
+            boolean isTimed = event.isTimed();
+            boolean shouldEndTimedEvent = (event.type == EventScheduler.TYPE_TIMED_END);
+
             FlurryEventRecordStatus status;
             Map<String, Object> eventData;
+            boolean isCircuitClosed = true;
 
+            long traceStart = traceStart();
             if (shouldEndTimedEvent) {
                 FlurryAgent.endTimedEvent(eventName, params);
+                traceEnd(TRACE_SDK_END_TIMED_EVENT, traceStart);
                 eventData = new Hashtable<>();
             } else {
                 // do we have optional params?
@@ -469,13 +1152,20 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 } else {
                     status = FlurryAgent.logEvent(eventName, isTimed);
                 }
+                traceEnd(TRACE_SDK_LOG_EVENT, traceStart);
 
                 eventData = getDataFromStatus(status);
+                isCircuitClosed = recordStatus(status);
             }
 
             // error condition if dictionary is not empty
             Boolean isError = (eventData.size() > 0);
 
+            // reported once with a circuitChanged event instead
+            if (isError && !isCircuitClosed) {
+                return;
+            }
+
             // add logEvent entry to data
             eventData.put(LOGEVENT_KEY, eventName);
 
@@ -484,6 +1174,9 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 eventData.put(PARAMS_KEY, params);
             }
 
+            // add priority to data
+            eventData.put(PRIORITY_KEY, EventScheduler.PRIORITY_NAMES[event.priority]);
+
             // set analytics type
             String analyticsType = (isTimed) ? ANALYTICS_TYPE_TIMED : ANALYTICS_TYPE_BASIC;
 
@@ -511,58 +1204,148 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
 
             dispatchLuaEvent(coronaEvent);
         }
-    }
 
-    // -------------------------------------------------------
-    // plugin implementation
-    // -------------------------------------------------------
+        private void deliverStandardEvent(EventScheduler.PendingEvent event) {
+            long traceStart = traceStart();
+            FlurryEventRecordStatus status = FlurryAgent.logEvent(event.standardEvent, event.typedParams.toFlurryParams());
+            traceEnd(TRACE_SDK_LOG_EVENT, traceStart);
+            Map<String, Object> eventData = getDataFromStatus(status);
 
-    // [Lua] init(listener, params)
-    private class Init implements NamedJavaFunction {
-        /**
-         * Gets the name of the Lua function as it would appear in the Lua script.
-         *
-         * @return Returns the name of the custom Lua function.
-         */
-        @Override
-        public String getName() {
-            return "init";
-        }
+            boolean isCircuitClosed = recordStatus(status);
 
-        /**
-         * This method is called when the Lua function is called.
-         * <p>
-         * Warning! This method is not called on the main UI thread.
-         *
-         * @param luaState Reference to the Lua state.
-         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
-         * @return Returns the number of values to be returned by the Lua function.
-         */
-        @Override
-        public int invoke(final LuaState luaState) {
-            // bail if init() has already been called
-            if (coronaListener != CoronaLua.REFNIL) {
-                return 0;
+            // error condition if dictionary is not empty
+            boolean isError = (eventData.size() > 0);
+
+            // reported once with a circuitChanged event instead
+            if (isError && !isCircuitClosed) {
+                return;
             }
 
-            // set data for logging function
+            eventData.put(LOGEVENT_KEY, event.name);
+            if (event.typedParams.size() > 0) {
+                eventData.put(PARAMS_KEY, event.typedParams.toMap());
+            }
+            eventData.put(PRIORITY_KEY, EventScheduler.PRIORITY_NAMES[event.priority]);
+
+            // create event data
+            Map<String, Object> coronaEvent = new Hashtable<>();
+            coronaEvent.put(EVENT_TYPE_KEY, ANALYTICS_TYPE_STANDARD);
+            coronaEvent.put(EVENT_DATA_KEY, eventData);
+
+            if (isError) {
+                coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
+                coronaEvent.put(CoronaLuaEvent.ISERROR_KEY, true);
+                coronaEvent.put(CoronaLuaEvent.RESPONSE_KEY, ERROR_DETAILS_MSG);
+            } else {
+                coronaEvent.put(EVENT_PHASE_KEY, PHASE_RECORDED);
+            }
+
+            dispatchLuaEvent(coronaEvent);
+        }
+
+        // feed the circuit breaker, returns false if it isn't closed (anymore)
+        private boolean recordStatus(FlurryEventRecordStatus status) {
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker == null) {
+                return true;
+            }
+
+            breaker.record(status);
+            return (breaker.getState() == CircuitBreaker.STATE_CLOSED);
+        }
+
+        @Override
+        public boolean canDeliver() {
+            // queued events wait for the circuit to close, or are the half-open probe
+            CircuitBreaker breaker = circuitBreaker;
+            return (breaker == null) || breaker.allowCall();
+        }
+    }
+
+    // reports circuit breaker changes to the listener (on the thread that caused the change)
+    private class CircuitListener implements CircuitBreaker.Listener {
+        @Override
+        public void onStateChanged(int state, FlurryEventRecordStatus cause, long retryAfterMs) {
+            Map<String, Object> eventData = (cause != null) ? getDataFromStatus(cause) : new Hashtable<String, Object>();
+            eventData.put(CIRCUIT_STATE_KEY, CircuitBreaker.STATE_NAMES[state]);
+
+            Map<String, Object> coronaEvent = new Hashtable<>();
+            coronaEvent.put(EVENT_PHASE_KEY, PHASE_CIRCUIT_CHANGED);
+            coronaEvent.put(EVENT_DATA_KEY, eventData);
+
+            if (state == CircuitBreaker.STATE_OPEN) {
+                logMsg(WARNING_MSG, "Event logging paused (%s), retrying in %d seconds", eventData.get(REASON_KEY), retryAfterMs / 1000);
+                eventData.put(RETRY_AFTER_KEY, retryAfterMs / 1000.0);
+                coronaEvent.put(CoronaLuaEvent.ISERROR_KEY, true);
+                coronaEvent.put(CoronaLuaEvent.RESPONSE_KEY, ERROR_DETAILS_MSG);
+            } else {
+                logMsg(DEBUG_MSG, "Event logging resumed");
+            }
+
+            dispatchLuaEvent(coronaEvent);
+        }
+    }
+
+    // -------------------------------------------------------
+    // plugin implementation
+    // -------------------------------------------------------
+
+    // [Lua] init(listener, params)
+    private class Init implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "init";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(final LuaState luaState) {
+            // bail if init() has already been called
+            if (coronaListener != CoronaLua.REFNIL) {
+                return 0;
+            }
+
+            // set data for logging function
             functionSignature = "flurry.init(listener, options)";
 
             // check number of args
             int nargs = luaState.getTop();
             if (nargs != 2) {
-                logMsg(ERROR_MSG, "Expected 2 arguments, got " + nargs);
+                logMsg(ERROR_MSG, "Expected 2 arguments, got %d", nargs);
                 return 0;
             }
 
             String apiKey = null;
             String logLevel = LOGLEVEL_DEFAULT;
+            int consent = CONSENT_GRANTED;
+            long sessionContinueMs = DEFAULT_SESSION_CONTINUE_MS;
+            Boolean reportLocation = null;                  // null keeps the SDK default
+            Boolean includeBackgroundSessions = null;
+            String performanceMetrics = null;
+            boolean deferUploads = false;
+            long maxUploadDelayMs = DEFAULT_MAX_UPLOAD_DELAY_MS;
+            UploadPolicy.DeviceState simulatedDeviceState = null;
+            boolean isTraceEnabled = false;
+            List<String> initialConfigKeys = null;
 
             // Get the listener (required)
             if (CoronaLua.isListener(luaState, 1, PROVIDER_NAME)) {
                 coronaListener = CoronaLua.newRef(luaState, 1);
             } else {
-                logMsg(ERROR_MSG, "Listener expected, got: " + luaState.typeName(1));
+                logMsg(ERROR_MSG, "Listener expected, got: %s", luaState.typeName(1));
                 return 0;
             }
 
@@ -576,34 +1359,146 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                         if (luaState.type(-1) == LuaType.STRING) {
                             apiKey = luaState.toString(-1);
                         } else {
-                            logMsg(ERROR_MSG, "options.apiKey (string) expected, got " + luaState.typeName(-1));
+                            logMsg(ERROR_MSG, "options.apiKey (string) expected, got %s", luaState.typeName(-1));
                             return 0;
                         }
                     } else if (key.equals("logLevel")) {
                         if (luaState.type(-1) == LuaType.STRING) {
                             logLevel = luaState.toString(-1);
                         } else {
-                            logMsg(ERROR_MSG, "options.logLevel (string) expected, got " + luaState.typeName(-1));
+                            logMsg(ERROR_MSG, "options.logLevel (string) expected, got %s", luaState.typeName(-1));
                             return 0;
                         }
                     } else if (key.equals("crashReportingEnabled")) {
                         if (luaState.type(-1) == LuaType.BOOLEAN) {
                             isCrashReportingEnabled = luaState.toBoolean(-1);
                         } else {
-                            logMsg(ERROR_MSG, "options.crashReportingEnabled (boolean) expected, got " + luaState.typeName(-1));
+                            logMsg(ERROR_MSG, "options.crashReportingEnabled (boolean) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("consent")) {
+                        if (luaState.type(-1) == LuaType.STRING) {
+                            consent = consentFromName(luaState.toString(-1));
+                            if (consent < 0) {
+                                logMsg(ERROR_MSG, "options.consent must be 'unknown', 'granted' or 'denied', got '%s'", luaState.toString(-1));
+                                return 0;
+                            }
+                        } else {
+                            logMsg(ERROR_MSG, "options.consent (string) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("sessionContinueSeconds")) {
+                        if (luaState.type(-1) == LuaType.NUMBER) {
+                            sessionContinueMs = (long) (luaState.toNumber(-1) * 1000);
+                        } else {
+                            logMsg(ERROR_MSG, "options.sessionContinueSeconds (number) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("reportLocation")) {
+                        if (luaState.type(-1) == LuaType.BOOLEAN) {
+                            reportLocation = luaState.toBoolean(-1);
+                        } else {
+                            logMsg(ERROR_MSG, "options.reportLocation (boolean) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("includeBackgroundSessionsInMetrics")) {
+                        if (luaState.type(-1) == LuaType.BOOLEAN) {
+                            includeBackgroundSessions = luaState.toBoolean(-1);
+                        } else {
+                            logMsg(ERROR_MSG, "options.includeBackgroundSessionsInMetrics (boolean) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("performanceMetrics")) {
+                        if (luaState.type(-1) == LuaType.STRING) {
+                            performanceMetrics = luaState.toString(-1);
+                            if (getPerformanceMetrics(performanceMetrics) < 0) {
+                                logMsg(ERROR_MSG, "options.performanceMetrics must be 'none', 'coldStart', 'screenTime' or 'all', got '%s'", performanceMetrics);
+                                return 0;
+                            }
+                        } else {
+                            logMsg(ERROR_MSG, "options.performanceMetrics (string) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("deferUploads")) {
+                        if (luaState.type(-1) == LuaType.BOOLEAN) {
+                            deferUploads = luaState.toBoolean(-1);
+                        } else {
+                            logMsg(ERROR_MSG, "options.deferUploads (boolean) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("maxUploadDelay")) {
+                        if (luaState.type(-1) == LuaType.NUMBER) {
+                            maxUploadDelayMs = (long) (luaState.toNumber(-1) * 1000);
+                        } else {
+                            logMsg(ERROR_MSG, "options.maxUploadDelay (number) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("simulatedDeviceState")) {
+                        if (luaState.type(-1) == LuaType.TABLE) {
+                            luaState.getField(-1, "unmetered");
+                            boolean isUnmetered = luaState.toBoolean(-1);
+                            luaState.pop(1);
+                            luaState.getField(-1, "charging");
+                            boolean isCharging = luaState.toBoolean(-1);
+                            luaState.pop(1);
+                            simulatedDeviceState = new UploadPolicy.FixedDeviceState(isUnmetered, isCharging);
+                        } else {
+                            logMsg(ERROR_MSG, "options.simulatedDeviceState (table) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("metricsFlushInterval")) {
+                        if (luaState.type(-1) == LuaType.NUMBER) {
+                            metricsFlushIntervalMs = (long) (luaState.toNumber(-1) * 1000);
+                        } else {
+                            logMsg(ERROR_MSG, "options.metricsFlushInterval (number) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("maxEventsPerSecond")) {
+                        if (luaState.type(-1) == LuaType.NUMBER) {
+                            maxEventsPerSecond = luaState.toNumber(-1);
+                        } else {
+                            logMsg(ERROR_MSG, "options.maxEventsPerSecond (number) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("configKeys")) {
+                        if (luaState.type(-1) == LuaType.TABLE) {
+                            initialConfigKeys = new ArrayList<>();
+                            int length = luaState.length(-1);
+                            for (int i = 1; i <= length; i++) {
+                                luaState.rawGet(-1, i);
+                                if (luaState.type(-1) != LuaType.STRING) {
+                                    logMsg(ERROR_MSG, "options.configKeys[%d] (string) expected, got %s", i, luaState.typeName(-1));
+                                    return 0;
+                                }
+                                initialConfigKeys.add(luaState.toString(-1));
+                                luaState.pop(1);
+                            }
+                        } else {
+                            logMsg(ERROR_MSG, "options.configKeys (table) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
+                    } else if (key.equals("traceEnabled")) {
+                        if (luaState.type(-1) == LuaType.BOOLEAN) {
+                            isTraceEnabled = luaState.toBoolean(-1);
+                        } else {
+                            logMsg(ERROR_MSG, "options.traceEnabled (boolean) expected, got %s", luaState.typeName(-1));
                             return 0;
                         }
                     } else if (key.equals("IAPReportingEnabled")) {
-                        // NOP (iOS only)
-                        // Automatic IAP logging not available on Android
-                        // TODO: Implement logPurchase() for manual reporting
+                        // Automatic IAP logging is not available on Android, this enables logPayment() instead
+                        if (luaState.type(-1) == LuaType.BOOLEAN) {
+                            isIAPReportingEnabled = luaState.toBoolean(-1);
+                        } else {
+                            logMsg(ERROR_MSG, "options.IAPReportingEnabled (boolean) expected, got %s", luaState.typeName(-1));
+                            return 0;
+                        }
                     } else {
-                        logMsg(ERROR_MSG, "Invalid option '" + key + "'");
+                        logMsg(ERROR_MSG, "Invalid option '%s'", key);
                         return 0;
                     }
                 }
             } else {
-                logMsg(ERROR_MSG, "options table expected, got " + luaState.typeName(2));
+                logMsg(ERROR_MSG, "options table expected, got %s", luaState.typeName(2));
                 return 0;
             }
 
@@ -613,20 +1508,38 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 return 0;
             }
 
+            int loggerLevel = getLoggerLevel(logLevel);
+            if (loggerLevel < 0) {
+                logMsg(WARNING_MSG, "Unknown options.logLevel '%s', using '%s'", logLevel, LOGLEVEL_DEFAULT);
+                logLevel = LOGLEVEL_DEFAULT;
+                loggerLevel = PluginLogger.LEVEL_WARNING;
+            }
+            logger.setLevel(loggerLevel);
+
             final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
             final Boolean crashReportingEnabled = isCrashReportingEnabled;
             final String fLogLevel = logLevel;
             final String fApiKey = apiKey;
+            final double fMaxEventsPerSecond = maxEventsPerSecond;
+            final long fSessionContinueMs = sessionContinueMs;
+            final Boolean fReportLocation = reportLocation;
+            final Boolean fIncludeBackgroundSessions = includeBackgroundSessions;
+            final String fPerformanceMetrics = performanceMetrics;
 
             if (coronaActivity != null) {
-                coronaActivity.runOnUiThread(new Runnable() {
+                Runnable startSDK = new Runnable() {
                     @Override
                     public void run() {
-                        // Log plugin version to device log
-                        Log.i(CORONA_TAG, PLUGIN_NAME + ": " + PLUGIN_VERSION + " (SDK: " + PLUGIN_SDK_VERSION + ")");
-
                         FlurryAgent.Builder builder = new FlurryAgent.Builder();
-                        builder = builder.withLogEnabled(true);
+
+                        // 'none' silences the plugin and the SDK (e.g. for release builds)
+                        if (fLogLevel.equals(LOGLEVEL_NONE)) {
+                            builder = builder.withLogEnabled(false);
+                        } else {
+                            // Log plugin version to device log
+                            Log.i(CORONA_TAG, PLUGIN_NAME + ": " + PLUGIN_VERSION + " (SDK: " + PLUGIN_SDK_VERSION + ")");
+                            builder = builder.withLogEnabled(true);
+                        }
 
                         switch (fLogLevel) {
                             case LOGLEVEL_DEBUG:
@@ -641,9 +1554,35 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                         }
 
                         builder = builder.withCaptureUncaughtExceptions(crashReportingEnabled);
-                        builder = builder.withContinueSessionMillis(5000);
+                        builder = builder.withContinueSessionMillis(fSessionContinueMs);
+
+                        if (fReportLocation != null) {
+                            builder = builder.withReportLocation(fReportLocation);
+                        }
+                        if (fIncludeBackgroundSessions != null) {
+                            builder = builder.withIncludeBackgroundSessionsInMetrics(fIncludeBackgroundSessions);
+                        }
+                        if (fPerformanceMetrics != null) {
+                            builder = builder.withPerformanceMetrics(getPerformanceMetrics(fPerformanceMetrics));
+                        }
+
                         builder = builder.withListener(new CoronaFlurryDelegate()); // cannot omit the listener even though it isn't used
+                        long traceStart = traceStart();
                         builder.build(coronaActivity, fApiKey);
+                        traceEnd(TRACE_SDK_BUILD, traceStart);
+
+                        // refresh the remote config in the background, the last snapshot is used until then
+                        if (configSnapshotFile != null) {
+                            configListener = new CoronaConfigListener();
+                            FlurryConfig.getInstance().registerListener(configListener);
+
+                            traceStart = traceStart();
+                            FlurryConfig.getInstance().fetchConfig();
+                            traceEnd(TRACE_SDK_FETCH_CONFIG, traceStart);
+                        }
+
+                        // critical events spilled during the previous run are replayed from the files dir
+                        eventScheduler = new EventScheduler(new FlurryEventSink(), coronaActivity.getFilesDir(), fMaxEventsPerSecond, uploadPolicy);
 
                         // Send 'init' event when a valid sessionId is available.
                         // We can't use the onSessionStarted listener due to timing issues with Flurry's automatic
@@ -661,14 +1600,56 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                             }
                         }, 0, 1, TimeUnit.SECONDS);
                     }
-                });
+                };
+
+                metricRecorder = new MetricRecorder();
+                if (metricsFlushIntervalMs > 0) {
+                    metricsExecutor = Executors.newSingleThreadScheduledExecutor();
+                }
+                circuitBreaker = new CircuitBreaker(new CircuitListener());
+
+                if (isTraceEnabled) {
+                    traceBuffer = new TraceBuffer(TRACE_BUFFER_CAPACITY);
+                }
+
+                if (initialConfigKeys != null) {
+                    // values activated during the last run are available before the SDK has started
+                    configSnapshotFile = new File(coronaActivity.getFilesDir(), CONFIG_SNAPSHOT_FILE_NAME);
+                    configSnapshot = ConfigSnapshot.load(configSnapshotFile);
+                    configKeys.addAll(configSnapshot.keys());
+                    configKeys.addAll(initialConfigKeys);
+                    configExecutor = Executors.newSingleThreadExecutor();
+                }
+
+                if (deferUploads) {
+                    UploadPolicy.DeviceState deviceState = simulatedDeviceState;
+                    if (deviceState == null) {
+                        deviceState = new UploadPolicy.AndroidDeviceState(coronaActivity);
+                    }
+                    uploadPolicy = new UploadPolicy(deviceState, maxUploadDelayMs);
+                }
+
+                // without consent the SDK isn't started at all, calls are buffered (unknown) or ignored (denied)
+                consentState = consent;
+                if (consent == CONSENT_DENIED) {
+                    // critical events kept on disk by an earlier run aren't sent either
+                    EventScheduler.deleteSpillFiles(coronaActivity.getFilesDir());
+                }
+                if (consent == CONSENT_GRANTED) {
+                    coronaActivity.runOnUiThread(startSDK);
+                } else {
+                    synchronized (consentBuffer) {
+                        isConsentBufferActive = true;
+                    }
+                    deferredSDKStart = startSDK;
+                }
             }
 
             return 0;
         }
     }
 
-    // [Lua] logEvent(event [, params])
+    // [Lua] logEvent(event [, params [, options]])
     private class LogEvent implements NamedJavaFunction {
         /**
          * Gets the name of the Lua function as it would appear in the Lua script.
@@ -699,7 +1680,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         }
     }
 
-    // [Lua] startTimedEvent(event [, params])
+    // [Lua] startTimedEvent(event [, params [, options]])
     private class StartTimedEvent implements NamedJavaFunction {
         /**
          * Gets the name of the Lua function as it would appear in the Lua script.
@@ -730,7 +1711,7 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         }
     }
 
-    // [Lua] endTimedEvent(event [, params])
+    // [Lua] endTimedEvent(event [, params [, options]])
     private class EndTimedEvent implements NamedJavaFunction {
         /**
          * Gets the name of the Lua function as it would appear in the Lua script.
@@ -790,17 +1771,19 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             final FlurryPrivacySession.Callback callback = new FlurryPrivacySession.Callback() {
                 @Override
                 public void success() {
-                    Log.d("FLURRYTAG", "Privacy Dashboard opened successfully");
+                    logMsg(DEBUG_MSG, "Privacy Dashboard opened successfully");
                 }
 
                 @Override
                 public void failure() {
-                    Log.d("FLURRYTAG", "Opening Privacy Dashboard failed");
+                    logMsg(WARNING_MSG, "Opening Privacy Dashboard failed");
                 }
             };
 
             final FlurryPrivacySession.Request request = new FlurryPrivacySession.Request(CoronaEnvironment.getApplicationContext(), callback);
+            long traceStart = traceStart();
             FlurryAgent.openPrivacyDashboard(request);
+            traceEnd(TRACE_SDK_PRIVACY_DASHBOARD, traceStart);
 
             //FlurryAgent.req
 
@@ -808,6 +1791,925 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         }
     }
 
+    // [Lua] getEventStats( )
+    private class GetEventStats implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "getEventStats";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.getEventStats( )";
+
+            if (!isSDKInitialized()) {
+                return 0;
+            }
+
+            Map<String, Object> stats = eventScheduler.getStats();
+
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker != null) {
+                Map<String, Object> circuitStats = new Hashtable<>();
+                circuitStats.put(CIRCUIT_STATE_KEY, CircuitBreaker.STATE_NAMES[breaker.getState()]);
+                circuitStats.put("dropped", breaker.getDroppedCount());
+                stats.put("circuit", circuitStats);
+            }
+
+            CoronaLua.pushValue(luaState, stats);
+
+            return 1;
+        }
+    }
+
+    // [Lua] setUserId(userId)
+    private class SetUserId implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "setUserId";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.setUserId(userId)";
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 1) {
+                logMsg(ERROR_MSG, "Expected 1 argument, got %d", nargs);
+                return 0;
+            }
+
+            // nil clears the user id
+            final String userId;
+            if (luaState.isNoneOrNil(1)) {
+                userId = null;
+            } else if (luaState.type(1) == LuaType.STRING) {
+                userId = luaState.toString(1);
+            } else {
+                logMsg(ERROR_MSG, "userId (string) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            runOrDefer(new Runnable() {
+                @Override
+                public void run() {
+                    long traceStart = traceStart();
+                    FlurryAgent.setUserId(userId);
+                    traceEnd(TRACE_SDK_SET_USER_ID, traceStart);
+                }
+            });
+
+            return 0;
+        }
+    }
+
+    // [Lua] setUserProperty(name, value)
+    private class SetUserProperty implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "setUserProperty";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.setUserProperty(name, value)";
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if ((nargs < 1) || (nargs > 2)) {
+                logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got %d", nargs);
+                return 0;
+            }
+
+            final String name;
+            if (luaState.type(1) == LuaType.STRING) {
+                name = luaState.toString(1);
+            } else {
+                logMsg(ERROR_MSG, "name (string) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            // value can be a string, an array of strings or nil (removes the property)
+            final List<String> values = new ArrayList<>();
+            if (luaState.type(2) == LuaType.STRING) {
+                values.add(luaState.toString(2));
+            } else if (luaState.type(2) == LuaType.TABLE) {
+                int length = luaState.length(2);
+                for (int i = 1; i <= length; i++) {
+                    luaState.rawGet(2, i);
+                    if (luaState.type(-1) != LuaType.STRING) {
+                        logMsg(ERROR_MSG, "value[%d] (string) expected, got %s", i, luaState.typeName(-1));
+                        luaState.pop(1);
+                        return 0;
+                    }
+                    values.add(luaState.toString(-1));
+                    luaState.pop(1);
+                }
+            } else if (!luaState.isNoneOrNil(2)) {
+                logMsg(ERROR_MSG, "value (string or table) expected, got %s", luaState.typeName(2));
+                return 0;
+            }
+
+            final boolean isSingleValue = (luaState.type(2) == LuaType.STRING);
+            runOrDefer(new Runnable() {
+                @Override
+                public void run() {
+                    long traceStart = traceStart();
+                    if (values.isEmpty()) {
+                        FlurryAgent.UserProperties.remove(name);
+                    } else if (isSingleValue) {
+                        FlurryAgent.UserProperties.set(name, values.get(0));
+                    } else {
+                        FlurryAgent.UserProperties.set(name, values);
+                    }
+                    traceEnd(TRACE_SDK_USER_PROPERTIES, traceStart);
+                }
+            });
+
+            return 0;
+        }
+    }
+
+    // [Lua] setSessionProperties(properties)
+    private class SetSessionProperties implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "setSessionProperties";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.setSessionProperties(properties)";
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 1) {
+                logMsg(ERROR_MSG, "Expected 1 argument, got %d", nargs);
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.TABLE) {
+                logMsg(ERROR_MSG, "properties (table) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            final Map<String, String> properties = toStringMap(luaState, 1);
+            if (properties == null) {
+                return 0;
+            }
+
+            runOrDefer(new Runnable() {
+                @Override
+                public void run() {
+                    long traceStart = traceStart();
+                    for (Map.Entry<String, String> entry : properties.entrySet()) {
+                        FlurryAgent.addSessionProperty(entry.getKey(), entry.getValue());
+                    }
+                    traceEnd(TRACE_SDK_SESSION_PROPERTIES, traceStart);
+                }
+            });
+
+            return 0;
+        }
+    }
+
+    // [Lua] setDefaultEventParams(params)
+    private class SetDefaultEventParams implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "setDefaultEventParams";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.setDefaultEventParams(params)";
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 1) {
+                logMsg(ERROR_MSG, "Expected 1 argument, got %d", nargs);
+                return 0;
+            }
+
+            // nil clears the defaults
+            if (luaState.isNoneOrNil(1)) {
+                defaultEventParams = Collections.emptyMap();
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.TABLE) {
+                logMsg(ERROR_MSG, "params (table) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            Map<String, String> params = toStringMap(luaState, 1);
+            if (params == null) {
+                return 0;
+            }
+
+            if (params.size() > MAX_EVENT_PARAMS) {
+                logMsg(ERROR_MSG, "Expected at most %d params, got %d", MAX_EVENT_PARAMS, params.size());
+                return 0;
+            }
+
+            // converted once here, shared by every event afterwards
+            defaultEventParams = Collections.unmodifiableMap(params);
+
+            return 0;
+        }
+    }
+
+    // [Lua] logStandardEvent(event [, params [, options]])
+    private class LogStandardEvent implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "logStandardEvent";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.logStandardEvent(event, params, options)";
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            // critical events are held by the scheduler while the circuit is open
+            if (!isCriticalOption(luaState, 3) && isCircuitOpen()) {
+                return 0;
+            }
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if ((nargs < 1) || (nargs > 3)) {
+                logMsg(ERROR_MSG, "Expected 1 to 3 arguments, got %d", nargs);
+                return 0;
+            }
+
+            FlurryEvent standardEvent;
+            if (luaState.type(1) == LuaType.STRING) {
+                standardEvent = StandardEvents.eventFromName(luaState.toString(1));
+                if (standardEvent == null) {
+                    logMsg(ERROR_MSG, "Unknown standard event '%s'", luaState.toString(1));
+                    return 0;
+                }
+            } else {
+                logMsg(ERROR_MSG, "event (string) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            StandardEvents.TypedParams params = new StandardEvents.TypedParams();
+            if (!luaState.isNoneOrNil(2)) {
+                if (luaState.type(2) == LuaType.TABLE) {
+                    params = toTypedParams(luaState, 2);
+                    if (params == null) {
+                        return 0;
+                    }
+                } else {
+                    logMsg(ERROR_MSG, "params table expected, got %s", luaState.typeName(2));
+                    return 0;
+                }
+            }
+
+            int priority = getPriorityOption(luaState, 3, EventScheduler.PRIORITY_NORMAL);
+            if (priority < 0) {
+                return 0;
+            }
+
+            submitEvent(new EventScheduler.PendingEvent(priority, standardEvent, params));
+
+            return 0;
+        }
+    }
+
+    // [Lua] logPayment(params)
+    private class LogPayment implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "logPayment";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.logPayment(params)";
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            // payments are critical, they are held by the scheduler while the circuit is open
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            if (!isIAPReportingEnabled) {
+                logMsg(WARNING_MSG, "Payment not logged, set options.IAPReportingEnabled to true in flurry.init() to enable IAP reporting");
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 1) {
+                logMsg(ERROR_MSG, "Expected 1 argument, got %d", nargs);
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.TABLE) {
+                logMsg(ERROR_MSG, "params table expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            StandardEvents.TypedParams params = toTypedParams(luaState, 1);
+            if (params == null) {
+                return 0;
+            }
+
+            for (String key : PAYMENT_REQUIRED_PARAMS) {
+                if (!params.containsKey(key)) {
+                    logMsg(ERROR_MSG, "params.%s is missing", key);
+                    return 0;
+                }
+            }
+
+            // payments always take the critical lane
+            submitEvent(new EventScheduler.PendingEvent(EventScheduler.PRIORITY_CRITICAL, FlurryEvent.PURCHASED, params));
+
+            return 0;
+        }
+    }
+
+    // [Lua] setConsent(consent)
+    private class SetConsent implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "setConsent";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.setConsent(consent)";
+
+            if (coronaListener == CoronaLua.REFNIL) {
+                logMsg(ERROR_MSG, "You must call flurry.init() before calling other Flurry API functions");
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 1) {
+                logMsg(ERROR_MSG, "Expected 1 argument, got %d", nargs);
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.STRING) {
+                logMsg(ERROR_MSG, "consent (string) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            int consent = consentFromName(luaState.toString(1));
+
+            if (consent == CONSENT_DENIED) {
+                consentState = CONSENT_DENIED;
+
+                // discard everything recorded while consent was unknown
+                synchronized (consentBuffer) {
+                    consentBuffer.clear();
+                }
+
+                // and everything that hasn't reached the SDK yet, including critical events on disk
+                if (eventScheduler != null) {
+                    eventScheduler.discardAll();
+                } else {
+                    CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+                    if (coronaActivity != null) {
+                        EventScheduler.deleteSpillFiles(coronaActivity.getFilesDir());
+                    }
+                }
+
+                MetricRecorder recorder = metricRecorder;
+                if (recorder != null) {
+                    recorder.flush();
+                }
+            } else if (consent == CONSENT_GRANTED) {
+                consentState = CONSENT_GRANTED;
+
+                // start the SDK, buffered calls are replayed just before the 'init' event
+                final Runnable startSDK = deferredSDKStart;
+                final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+                if ((startSDK != null) && (coronaActivity != null)) {
+                    deferredSDKStart = null;
+                    coronaActivity.runOnUiThread(startSDK);
+                }
+            } else {
+                logMsg(ERROR_MSG, "consent must be 'granted' or 'denied', got '%s'", luaState.toString(1));
+            }
+
+            return 0;
+        }
+    }
+
+    // [Lua] recordMetric(name, value)
+    private class RecordMetric implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "recordMetric";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.recordMetric(name, value)";
+
+            if (consentState == CONSENT_DENIED) {
+                return 0;
+            }
+
+            if (!canRecord()) {
+                return 0;
+            }
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 2) {
+                logMsg(ERROR_MSG, "Expected 2 arguments, got %d", nargs);
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.STRING) {
+                logMsg(ERROR_MSG, "name (string) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            if (luaState.type(2) != LuaType.NUMBER) {
+                logMsg(ERROR_MSG, "value (number) expected, got %s", luaState.typeName(2));
+                return 0;
+            }
+
+            double value = luaState.toNumber(2);
+            if (Double.isNaN(value)) {
+                logMsg(ERROR_MSG, "value must be a number, got NaN");
+                return 0;
+            }
+
+            if (!metricRecorder.record(luaState.toString(1), value)) {
+                logMsg(ERROR_MSG, "Too many metrics, at most %d metric names are supported", MetricRecorder.MAX_METRICS);
+                return 0;
+            }
+
+            scheduleMetricsFlush();
+
+            return 0;
+        }
+    }
+
+    // [Lua] newEvent(event [, paramKeys [, options]])
+    private class NewEvent implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "newEvent";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.newEvent(event, paramKeys, options)";
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if ((nargs < 1) || (nargs > 3)) {
+                logMsg(ERROR_MSG, "Expected 1 to 3 arguments, got %d", nargs);
+                return 0;
+            }
+
+            String eventName;
+            if (luaState.type(1) == LuaType.STRING) {
+                eventName = luaState.toString(1);
+            } else {
+                logMsg(ERROR_MSG, "event (string) expected, got %s", luaState.typeName(1));
+                return 0;
+            }
+
+            // param keys are validated once here instead of on every log() call
+            List<String> paramKeys = new ArrayList<>();
+            if (!luaState.isNoneOrNil(2)) {
+                if (luaState.type(2) != LuaType.TABLE) {
+                    logMsg(ERROR_MSG, "paramKeys table expected, got %s", luaState.typeName(2));
+                    return 0;
+                }
+
+                int length = luaState.length(2);
+                if (length > MAX_EVENT_PARAMS) {
+                    logMsg(ERROR_MSG, "Expected at most %d param keys, got %d", MAX_EVENT_PARAMS, length);
+                    return 0;
+                }
+
+                for (int i = 1; i <= length; i++) {
+                    luaState.rawGet(2, i);
+                    if (luaState.type(-1) != LuaType.STRING) {
+                        logMsg(ERROR_MSG, "paramKeys[%d] (string) expected, got %s", i, luaState.typeName(-1));
+                        luaState.pop(1);
+                        return 0;
+                    }
+                    String key = luaState.toString(-1);
+                    luaState.pop(1);
+
+                    if (paramKeys.contains(key)) {
+                        logMsg(ERROR_MSG, "Duplicate param key '%s'", key);
+                        return 0;
+                    }
+                    paramKeys.add(key);
+                }
+            }
+
+            int priority = getPriorityOption(luaState, 3, EventScheduler.PRIORITY_NORMAL);
+            if (priority < 0) {
+                return 0;
+            }
+
+            EventHandle handle = new EventHandle(eventName, paramKeys.toArray(new String[0]), priority);
+
+            // return { name = event, log = function(self, ...) }
+            luaState.newTable();
+            luaState.pushString(eventName);
+            luaState.setField(-2, "name");
+            luaState.pushJavaFunction(handle);
+            luaState.setField(-2, "log");
+
+            return 1;
+        }
+    }
+
+    // [Lua] dumpTrace(path)
+    private class DumpTrace implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "dumpTrace";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.dumpTrace(path)";
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if (nargs != 1) {
+                logMsg(ERROR_MSG, "Expected 1 argument, got %d", nargs);
+                luaState.pushBoolean(false);
+                return 1;
+            }
+
+            if (luaState.type(1) != LuaType.STRING) {
+                logMsg(ERROR_MSG, "path (string) expected, got %s", luaState.typeName(1));
+                luaState.pushBoolean(false);
+                return 1;
+            }
+
+            TraceBuffer trace = traceBuffer;
+            if (trace == null) {
+                logMsg(WARNING_MSG, "Tracing is disabled, set options.traceEnabled in flurry.init()");
+                luaState.pushBoolean(false);
+                return 1;
+            }
+
+            String path = luaState.toString(1);
+            try {
+                trace.writeChromeTrace(new File(path));
+            } catch (IOException ex) {
+                logMsg(ERROR_MSG, "Could not write trace to '%s': %s", path, ex.getMessage());
+                luaState.pushBoolean(false);
+                return 1;
+            }
+
+            luaState.pushBoolean(true);
+            return 1;
+        }
+    }
+
+    // [Lua] getConfig(key [, default])
+    private class GetConfig implements NamedJavaFunction {
+        /**
+         * Gets the name of the Lua function as it would appear in the Lua script.
+         *
+         * @return Returns the name of the custom Lua function.
+         */
+        @Override
+        public String getName() {
+            return "getConfig";
+        }
+
+        /**
+         * This method is called when the Lua function is called.
+         * <p>
+         * Warning! This method is not called on the main UI thread.
+         *
+         * @param luaState Reference to the Lua state.
+         *                 Needed to retrieve the Lua function's parameters and to return values back to Lua.
+         * @return Returns the number of values to be returned by the Lua function.
+         */
+        @Override
+        public int invoke(LuaState luaState) {
+            functionSignature = "flurry.getConfig(key [, default])";
+
+            // check number of args
+            int nargs = luaState.getTop();
+            if ((nargs < 1) || (nargs > 2)) {
+                logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got %d", nargs);
+                luaState.pushNil();
+                return 1;
+            }
+
+            if (luaState.type(1) != LuaType.STRING) {
+                logMsg(ERROR_MSG, "key (string) expected, got %s", luaState.typeName(1));
+                luaState.pushNil();
+                return 1;
+            }
+
+            String key = luaState.toString(1);
+            ConfigSnapshot.Value value = configSnapshot.get(key);
+
+            if (value == null) {
+                if (configSnapshotFile == null) {
+                    logMsg(WARNING_MSG, "Remote config is disabled, set options.configKeys in flurry.init()");
+                } else if (configKeys.add(key) && hasActivatedConfig) {
+                    // FlurryConfig can't list its keys, pick up the value for later calls
+                    scheduleConfigRefresh(false, false);
+                }
+
+                if (nargs == 2) {
+                    luaState.pushValue(2);
+                } else {
+                    luaState.pushNil();
+                }
+                return 1;
+            }
+
+            // the type of the default decides the type of the result
+            LuaType defaultType = (nargs == 2) ? luaState.type(2) : LuaType.NIL;
+            if (defaultType == LuaType.NUMBER) {
+                if (Double.isNaN(value.number)) {
+                    luaState.pushValue(2);
+                } else {
+                    luaState.pushNumber(value.number);
+                }
+            } else if (defaultType == LuaType.BOOLEAN) {
+                if (value.bool == null) {
+                    luaState.pushValue(2);
+                } else {
+                    luaState.pushBoolean(value.bool);
+                }
+            } else {
+                luaState.pushString(value.string);
+            }
+
+            return 1;
+        }
+    }
+
+    // times an exported function while tracing is enabled
+    private class TracedFunction implements NamedJavaFunction {
+        private final NamedJavaFunction function;
+        private final int nameId;
+
+        public TracedFunction(NamedJavaFunction function) {
+            this.function = function;
+            this.nameId = TraceBuffer.registerName("flurry." + function.getName());
+        }
+
+        @Override
+        public String getName() {
+            return function.getName();
+        }
+
+        @Override
+        public int invoke(LuaState luaState) {
+            long traceStart = traceStart();
+            int result = function.invoke(luaState);
+            traceEnd(nameId, traceStart);
+            return result;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Flurry config listener
+    // -------------------------------------------------------------------------
+    private class CoronaConfigListener implements FlurryConfigListener {
+        @Override
+        public void onFetchSuccess() {
+            long traceStart = traceStart();
+            FlurryConfig.getInstance().activateConfig();
+            traceEnd(TRACE_SDK_ACTIVATE_CONFIG, traceStart);
+        }
+
+        @Override
+        public void onFetchNoChange() {
+            // NOP
+            // The active config is up to date (activated from the SDK's cache at startup)
+        }
+
+        @Override
+        public void onFetchError(boolean isRetrying) {
+            Map<String, Object> eventData = new Hashtable<>();
+            eventData.put(IS_RETRYING_KEY, isRetrying);
+
+            Map<String, Object> coronaEvent = new Hashtable<>();
+            coronaEvent.put(EVENT_TYPE_KEY, EVENT_TYPE_CONFIG);
+            coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
+            coronaEvent.put(EVENT_DATA_KEY, eventData);
+            coronaEvent.put(CoronaLuaEvent.ISERROR_KEY, true);
+            coronaEvent.put(CoronaLuaEvent.RESPONSE_KEY, "Fetching the remote config failed");
+
+            dispatchLuaEvent(coronaEvent);
+        }
+
+        @Override
+        public void onActivateComplete(boolean isCache) {
+            hasActivatedConfig = true;
+            scheduleConfigRefresh(true, isCache);
+        }
+    }
+
     // -------------------------------------------------------------------------
     // Flurry delegate class
     // -------------------------------------------------------------------------
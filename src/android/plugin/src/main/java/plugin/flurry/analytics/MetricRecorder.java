@@ -0,0 +1,109 @@
+//
+// MetricRecorder.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Aggregates metric samples (frame time, load time, ...) into quantile sketches.
+ * <p>
+ * Samples are recorded on the Lua thread without allocating. flush() turns the sketches into
+ * summary event params (count, mean, min, max and percentiles) and resets them, it is called
+ * from a timer so the formatting doesn't happen on the Lua thread. The lock is only held while
+ * the filled sketches are swapped for empty ones, so record() doesn't wait for the formatting.
+ */
+final class MetricRecorder {
+    static final int MAX_METRICS = 32;
+
+    // percentiles reported per metric
+    private static final double[] PERCENTILES = {0.50, 0.95, 0.99};
+    private static final String[] PERCENTILE_KEYS = {"p50", "p95", "p99"};
+
+    // guarded by this
+    private final Map<String, QuantileSketch> sketches = new HashMap<>();
+    private final List<QuantileSketch> spareSketches = new ArrayList<>();
+
+    /**
+     * Adds a sample, returns false if the metric would exceed MAX_METRICS.
+     */
+    synchronized boolean record(String name, double value) {
+        QuantileSketch sketch = sketches.get(name);
+        if (sketch == null) {
+            if (sketches.size() >= MAX_METRICS) {
+                return false;
+            }
+            sketch = new QuantileSketch();
+            sketches.put(name, sketch);
+        }
+
+        sketch.add(value);
+        return true;
+    }
+
+    synchronized boolean hasSamples() {
+        for (QuantileSketch sketch : sketches.values()) {
+            if (sketch.getCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns summary params per metric name for every metric with samples, and resets the sketches.
+     */
+    Map<String, Map<String, String>> flush() {
+        Map<String, QuantileSketch> filled = new HashMap<>();
+
+        synchronized (this) {
+            for (Map.Entry<String, QuantileSketch> entry : sketches.entrySet()) {
+                if (entry.getValue().getCount() == 0) {
+                    continue;
+                }
+
+                filled.put(entry.getKey(), entry.getValue());
+                int spareCount = spareSketches.size();
+                entry.setValue((spareCount > 0) ? spareSketches.remove(spareCount - 1) : new QuantileSketch());
+            }
+        }
+
+        Map<String, Map<String, String>> summaries = new Hashtable<>();
+        for (Map.Entry<String, QuantileSketch> entry : filled.entrySet()) {
+            QuantileSketch sketch = entry.getValue();
+            Map<String, String> params = new Hashtable<>();
+            params.put("count", Long.toString(sketch.getCount()));
+            params.put("mean", format(sketch.getMean()));
+            params.put("min", format(sketch.getMin()));
+            params.put("max", format(sketch.getMax()));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                params.put(PERCENTILE_KEYS[i], format(sketch.getQuantile(PERCENTILES[i])));
+            }
+
+            summaries.put(entry.getKey(), params);
+            sketch.reset();
+        }
+
+        // reused by the next flush
+        synchronized (this) {
+            spareSketches.addAll(filled.values());
+        }
+
+        return summaries;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+}
@@ -0,0 +1,98 @@
+//
+// PluginLogger.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Level-gated console logger for the plugin.
+ * <p>
+ * Messages are only formatted once they pass the level check. Repeats of the same message
+ * (same format and function) are logged at most once per interval, together with the number of
+ * repeats that were suppressed, so a misused per-frame call doesn't flood logcat.
+ */
+final class PluginLogger {
+    // levels, a message is logged if its level is <= the logger level
+    static final int LEVEL_NONE = 0;
+    static final int LEVEL_WARNING = 1;     // errors and warnings
+    static final int LEVEL_DEBUG = 2;
+
+    private static final long REPEAT_INTERVAL_MS = 5000;
+
+    private static final class Repeat {
+        long lastLoggedAt;
+        int suppressedCount;
+    }
+
+    private final String tag;
+    private volatile int level = LEVEL_WARNING;
+
+    // format -> function signature -> repeat state
+    private final Map<String, Map<String, Repeat>> repeats = new HashMap<>();
+
+    PluginLogger(String tag) {
+        this.tag = tag;
+    }
+
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    boolean isLoggable(int msgLevel) {
+        return (msgLevel != LEVEL_NONE) && (msgLevel <= level);
+    }
+
+    /**
+     * Logs a message unless it was already logged within the repeat interval.
+     * Callers are expected to check isLoggable() first.
+     */
+    void log(String msgType, String functionSignature, String format, Object... args) {
+        int suppressedCount;
+
+        synchronized (repeats) {
+            Map<String, Repeat> bySignature = repeats.get(format);
+            if (bySignature == null) {
+                bySignature = new HashMap<>();
+                repeats.put(format, bySignature);
+            }
+
+            Repeat repeat = bySignature.get(functionSignature);
+            long now = SystemClock.elapsedRealtime();
+
+            if (repeat == null) {
+                repeat = new Repeat();
+                bySignature.put(functionSignature, repeat);
+            } else if ((now - repeat.lastLoggedAt) < REPEAT_INTERVAL_MS) {
+                repeat.suppressedCount++;
+                return;
+            }
+
+            suppressedCount = repeat.suppressedCount;
+            repeat.suppressedCount = 0;
+            repeat.lastLoggedAt = now;
+        }
+
+        StringBuilder msg = new StringBuilder(msgType);
+        if (!functionSignature.isEmpty()) {
+            msg.append(functionSignature).append(", ");
+        }
+        msg.append((args.length > 0) ? String.format(Locale.US, format, args) : format);
+        if (suppressedCount > 0) {
+            msg.append(" (repeated ").append(suppressedCount).append(" more times)");
+        }
+
+        Log.i(tag, msg.toString());
+    }
+}
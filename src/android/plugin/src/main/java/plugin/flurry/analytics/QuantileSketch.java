@@ -0,0 +1,110 @@
+//
+// QuantileSketch.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory quantile sketch with relative error guarantees (DDSketch style).
+ * <p>
+ * Positive values are counted in logarithmically sized buckets, so every quantile is accurate to
+ * within 1% of its true value. The bucket range is fixed (about 0.001 to 10^10), values outside
+ * of it are clamped to the first or last bucket. Adding a value doesn't allocate.
+ * Not thread-safe.
+ */
+final class QuantileSketch {
+    private static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // smallest positive value with its own bucket
+    private static final double MIN_TRACKED_VALUE = 1e-3;
+    private static final int INDEX_OFFSET = (int) Math.ceil(Math.log(MIN_TRACKED_VALUE) / LOG_GAMMA);
+    private static final int BUCKET_COUNT = 1600;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private long zeroCount;     // values <= 0
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+
+    QuantileSketch() {
+        reset();
+    }
+
+    void add(double value) {
+        if (value > 0) {
+            int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA) - INDEX_OFFSET;
+            if (index < 0) {
+                index = 0;
+            } else if (index >= BUCKET_COUNT) {
+                index = BUCKET_COUNT - 1;
+            }
+            counts[index]++;
+        } else {
+            zeroCount++;
+        }
+
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return (count > 0) ? sum / count : 0;
+    }
+
+    // q in [0, 1]
+    double getQuantile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) (q * (count - 1));
+        if (rank < zeroCount) {
+            return Math.max(min, 0);
+        }
+
+        long seen = zeroCount;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                // midpoint of the bucket (in relative terms)
+                double value = 2 * Math.pow(GAMMA, i + INDEX_OFFSET) / (GAMMA + 1);
+                return Math.min(Math.max(value, min), max);
+            }
+        }
+
+        return max;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        zeroCount = 0;
+        count = 0;
+        sum = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+}
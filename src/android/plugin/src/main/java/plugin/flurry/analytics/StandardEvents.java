@@ -0,0 +1,283 @@
+//
+// StandardEvents.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+// Flurry imports
+import com.flurry.android.FlurryEvent;
+
+/**
+ * Lookup tables and typed params for Flurry's standard events.
+ * <p>
+ * Lua names are the camel case form of the SDK constants, e.g. "addItemToCart" for
+ * FlurryEvent.ADD_ITEM_TO_CART and "totalAmount" for FlurryEvent.Param.TOTAL_AMOUNT.
+ * The tables are built once so logging a standard event only costs a map lookup per param.
+ */
+final class StandardEvents {
+    // Flurry accepts at most 10 params per event
+    static final int MAX_PARAMS = 10;
+
+    // results of the TypedParams put functions (LuaLoader formats the message)
+    static final int PUT_OK = 0;
+    static final int PUT_WRONG_TYPE = 1;        // see expectedType()
+    static final int PUT_NOT_AN_INTEGER = 2;
+    static final int PUT_TOO_MANY_PARAMS = 3;   // see MAX_PARAMS
+
+    // value kinds
+    private static final int KIND_STRING = 0;
+    private static final int KIND_NUMBER = 1;
+    private static final int KIND_BOOLEAN = 2;
+
+    private static final Map<String, FlurryEvent> EVENTS = new HashMap<>();
+    private static final Map<String, FlurryEvent.ParamBase> PARAMS = new HashMap<>();
+
+    static {
+        for (FlurryEvent event : FlurryEvent.values()) {
+            EVENTS.put(toLuaName(event.name()), event);
+        }
+
+        // standard params by their Lua name
+        PARAMS.put("adType", FlurryEvent.Param.AD_TYPE);
+        PARAMS.put("levelName", FlurryEvent.Param.LEVEL_NAME);
+        PARAMS.put("levelNumber", FlurryEvent.Param.LEVEL_NUMBER);
+        PARAMS.put("contentName", FlurryEvent.Param.CONTENT_NAME);
+        PARAMS.put("contentType", FlurryEvent.Param.CONTENT_TYPE);
+        PARAMS.put("contentId", FlurryEvent.Param.CONTENT_ID);
+        PARAMS.put("creditName", FlurryEvent.Param.CREDIT_NAME);
+        PARAMS.put("creditType", FlurryEvent.Param.CREDIT_TYPE);
+        PARAMS.put("creditId", FlurryEvent.Param.CREDIT_ID);
+        PARAMS.put("isCurrencySoft", FlurryEvent.Param.IS_CURRENCY_SOFT);
+        PARAMS.put("currencyType", FlurryEvent.Param.CURRENCY_TYPE);
+        PARAMS.put("paymentType", FlurryEvent.Param.PAYMENT_TYPE);
+        PARAMS.put("itemName", FlurryEvent.Param.ITEM_NAME);
+        PARAMS.put("itemType", FlurryEvent.Param.ITEM_TYPE);
+        PARAMS.put("itemId", FlurryEvent.Param.ITEM_ID);
+        PARAMS.put("itemCount", FlurryEvent.Param.ITEM_COUNT);
+        PARAMS.put("itemCategory", FlurryEvent.Param.ITEM_CATEGORY);
+        PARAMS.put("itemListType", FlurryEvent.Param.ITEM_LIST_TYPE);
+        PARAMS.put("price", FlurryEvent.Param.PRICE);
+        PARAMS.put("totalAmount", FlurryEvent.Param.TOTAL_AMOUNT);
+        PARAMS.put("achievementId", FlurryEvent.Param.ACHIEVEMENT_ID);
+        PARAMS.put("score", FlurryEvent.Param.SCORE);
+        PARAMS.put("rating", FlurryEvent.Param.RATING);
+        PARAMS.put("transactionId", FlurryEvent.Param.TRANSACTION_ID);
+        PARAMS.put("success", FlurryEvent.Param.SUCCESS);
+        PARAMS.put("isAnnualSubscription", FlurryEvent.Param.IS_ANNUAL_SUBSCRIPTION);
+        PARAMS.put("subscriptionCountry", FlurryEvent.Param.SUBSCRIPTION_COUNTRY);
+        PARAMS.put("trialDays", FlurryEvent.Param.TRIAL_DAYS);
+        PARAMS.put("predictedLtv", FlurryEvent.Param.PREDICTED_LTV);
+        PARAMS.put("groupName", FlurryEvent.Param.GROUP_NAME);
+        PARAMS.put("tutorialName", FlurryEvent.Param.TUTORIAL_NAME);
+        PARAMS.put("stepNumber", FlurryEvent.Param.STEP_NUMBER);
+        PARAMS.put("userId", FlurryEvent.Param.USER_ID);
+        PARAMS.put("method", FlurryEvent.Param.METHOD);
+        PARAMS.put("query", FlurryEvent.Param.QUERY);
+        PARAMS.put("searchType", FlurryEvent.Param.SEARCH_TYPE);
+        PARAMS.put("socialContentName", FlurryEvent.Param.SOCIAL_CONTENT_NAME);
+        PARAMS.put("socialContentId", FlurryEvent.Param.SOCIAL_CONTENT_ID);
+        PARAMS.put("likeType", FlurryEvent.Param.LIKE_TYPE);
+        PARAMS.put("mediaName", FlurryEvent.Param.MEDIA_NAME);
+        PARAMS.put("mediaType", FlurryEvent.Param.MEDIA_TYPE);
+        PARAMS.put("mediaId", FlurryEvent.Param.MEDIA_ID);
+        PARAMS.put("duration", FlurryEvent.Param.DURATION);
+    }
+
+    private StandardEvents() {
+    }
+
+    // ADD_ITEM_TO_CART -> addItemToCart
+    private static String toLuaName(String constantName) {
+        StringBuilder builder = new StringBuilder(constantName.length());
+        boolean upperNext = false;
+
+        for (char c : constantName.toCharArray()) {
+            if (c == '_') {
+                upperNext = (builder.length() > 0);
+            } else {
+                builder.append(upperNext ? Character.toUpperCase(c) : Character.toLowerCase(c));
+                upperNext = false;
+            }
+        }
+
+        return builder.toString();
+    }
+
+    // returns null for unknown names
+    static FlurryEvent eventFromName(String name) {
+        return EVENTS.get(name);
+    }
+
+    static String nameFromEvent(FlurryEvent event) {
+        return toLuaName(event.name());
+    }
+
+    /**
+     * Event params with typed values, stored in flat arrays.
+     * <p>
+     * Values are validated against the standard param type when they are put, so building
+     * the SDK params on the scheduler thread can't fail.
+     */
+    static final class TypedParams {
+        private final String[] keys = new String[MAX_PARAMS];
+        private final int[] kinds = new int[MAX_PARAMS];
+        private final double[] numbers = new double[MAX_PARAMS];
+        private final String[] strings = new String[MAX_PARAMS];
+        private int count = 0;
+
+        int size() {
+            return count;
+        }
+
+        boolean containsKey(String key) {
+            for (int i = 0; i < count; i++) {
+                if (keys[i].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // the put functions return PUT_OK or one of the PUT_* errors
+        int putString(String key, String value) {
+            FlurryEvent.ParamBase param = PARAMS.get(key);
+            if ((param != null) && !(param instanceof FlurryEvent.StringParam)) {
+                return PUT_WRONG_TYPE;
+            }
+            return put(key, KIND_STRING, 0, value);
+        }
+
+        int putNumber(String key, double value) {
+            FlurryEvent.ParamBase param = PARAMS.get(key);
+            if ((param instanceof FlurryEvent.IntegerParam) || (param instanceof FlurryEvent.LongParam)) {
+                if (value != Math.rint(value)) {
+                    return PUT_NOT_AN_INTEGER;
+                }
+            } else if ((param != null) && !(param instanceof FlurryEvent.DoubleParam)) {
+                return PUT_WRONG_TYPE;
+            }
+            return put(key, KIND_NUMBER, value, null);
+        }
+
+        int putBoolean(String key, boolean value) {
+            FlurryEvent.ParamBase param = PARAMS.get(key);
+            if ((param != null) && !(param instanceof FlurryEvent.BooleanParam)) {
+                return PUT_WRONG_TYPE;
+            }
+            return put(key, KIND_BOOLEAN, value ? 1 : 0, null);
+        }
+
+        private int put(String key, int kind, double number, String string) {
+            if (count >= MAX_PARAMS) {
+                return PUT_TOO_MANY_PARAMS;
+            }
+
+            keys[count] = key;
+            kinds[count] = kind;
+            numbers[count] = number;
+            strings[count] = string;
+            count++;
+
+            return PUT_OK;
+        }
+
+        // Lua type name of a standard param, for PUT_WRONG_TYPE messages
+        static String expectedType(String key) {
+            FlurryEvent.ParamBase param = PARAMS.get(key);
+            if (param instanceof FlurryEvent.StringParam) {
+                return "string";
+            } else if (param instanceof FlurryEvent.BooleanParam) {
+                return "boolean";
+            }
+            return "number";
+        }
+
+        // build the SDK params (standard keys use the precomputed param objects)
+        FlurryEvent.Params toFlurryParams() {
+            FlurryEvent.Params params = new FlurryEvent.Params();
+
+            for (int i = 0; i < count; i++) {
+                FlurryEvent.ParamBase param = PARAMS.get(keys[i]);
+
+                if (param instanceof FlurryEvent.StringParam) {
+                    params.putString((FlurryEvent.StringParam) param, strings[i]);
+                } else if (param instanceof FlurryEvent.IntegerParam) {
+                    params.putInteger((FlurryEvent.IntegerParam) param, (int) numbers[i]);
+                } else if (param instanceof FlurryEvent.LongParam) {
+                    params.putLong((FlurryEvent.LongParam) param, (long) numbers[i]);
+                } else if (param instanceof FlurryEvent.DoubleParam) {
+                    params.putDouble((FlurryEvent.DoubleParam) param, numbers[i]);
+                } else if (param instanceof FlurryEvent.BooleanParam) {
+                    params.putBoolean((FlurryEvent.BooleanParam) param, numbers[i] != 0);
+                } else if (kinds[i] == KIND_STRING) {
+                    params.putString(keys[i], strings[i]);
+                } else if (kinds[i] == KIND_BOOLEAN) {
+                    params.putBoolean(keys[i], numbers[i] != 0);
+                } else {
+                    params.putDouble(keys[i], numbers[i]);
+                }
+            }
+
+            return params;
+        }
+
+        // params as they are reported back to Lua
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new Hashtable<>();
+
+            for (int i = 0; i < count; i++) {
+                switch (kinds[i]) {
+                    case KIND_STRING:
+                        map.put(keys[i], strings[i]);
+                        break;
+                    case KIND_BOOLEAN:
+                        map.put(keys[i], numbers[i] != 0);
+                        break;
+                    default:
+                        map.put(keys[i], numbers[i]);
+                        break;
+                }
+            }
+
+            return map;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeUTF(keys[i]);
+                out.writeInt(kinds[i]);
+                out.writeDouble(numbers[i]);
+                out.writeBoolean(strings[i] != null);
+                if (strings[i] != null) {
+                    out.writeUTF(strings[i]);
+                }
+            }
+        }
+
+        static TypedParams readFrom(DataInputStream in) throws IOException {
+            TypedParams params = new TypedParams();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int kind = in.readInt();
+                double number = in.readDouble();
+                String string = in.readBoolean() ? in.readUTF() : null;
+                params.put(key, kind, number, string);
+            }
+            return params;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+//
+// TraceBuffer.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Process;
+
+/**
+ * Fixed-size ring buffer of timed trace entries, exported in Chrome trace_event format.
+ * <p>
+ * Entries live in preallocated primitive arrays. Writers claim a slot with a single atomic increment
+ * and never block, the oldest entries are overwritten when the buffer is full. Each slot carries a
+ * sequence number so the exporter can skip slots that are being rewritten while it reads them.
+ */
+final class TraceBuffer {
+    // names are registered once and referenced by id in the entries
+    private static final List<String> names = new ArrayList<>();
+
+    private final int mask;
+    private final long[] startNanos;
+    private final long[] durationNanos;
+    private final int[] threadIds;
+    private final int[] nameIds;
+    private final AtomicLongArray sequences;
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * @param capacity Number of entries, rounded up to a power of two.
+     */
+    TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        startNanos = new long[size];
+        durationNanos = new long[size];
+        threadIds = new int[size];
+        nameIds = new int[size];
+        sequences = new AtomicLongArray(size);
+    }
+
+    /**
+     * Returns the id for a trace entry name, registering it if needed. Not meant for hot paths.
+     */
+    static int registerName(String name) {
+        synchronized (names) {
+            int nameId = names.indexOf(name);
+            if (nameId < 0) {
+                names.add(name);
+                nameId = names.size() - 1;
+            }
+            return nameId;
+        }
+    }
+
+    /**
+     * Records an entry. Safe to call from any thread, never blocks or allocates.
+     */
+    void record(int nameId, long start, long duration) {
+        long ticket = cursor.getAndIncrement();
+        int slot = (int) (ticket & mask);
+
+        // mark the slot as in progress, then publish the entry with its ticket
+        sequences.set(slot, -1);
+        startNanos[slot] = start;
+        durationNanos[slot] = duration;
+        threadIds[slot] = Process.myTid();
+        nameIds[slot] = nameId;
+        sequences.lazySet(slot, ticket + 1);
+    }
+
+    /**
+     * Writes the buffered entries (oldest first) to a Chrome trace_event JSON file.
+     */
+    void writeChromeTrace(File file) throws IOException {
+        String[] nameTable;
+        synchronized (names) {
+            nameTable = names.toArray(new String[0]);
+        }
+
+        long end = cursor.get();
+        long begin = Math.max(0, end - (mask + 1));
+        int pid = Process.myPid();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("{\"traceEvents\":[");
+            boolean isFirst = true;
+
+            for (long ticket = begin; ticket < end; ticket++) {
+                int slot = (int) (ticket & mask);
+
+                long sequence = sequences.get(slot);
+                long start = startNanos[slot];
+                long duration = durationNanos[slot];
+                int threadId = threadIds[slot];
+                int nameId = nameIds[slot];
+
+                // skip slots that were overwritten (or are being written) in the meantime
+                if ((sequence != ticket + 1) || (sequences.get(slot) != sequence)) {
+                    continue;
+                }
+
+                if (!isFirst) {
+                    writer.write(',');
+                }
+                isFirst = false;
+
+                String name = ((nameId >= 0) && (nameId < nameTable.length)) ? nameTable[nameId] : "unknown";
+                writer.write("{\"name\":\"");
+                writer.write(name);
+                writer.write("\",\"cat\":\"flurry\",\"ph\":\"X\",\"ts\":");
+                writer.write(formatMicros(start));
+                writer.write(",\"dur\":");
+                writer.write(formatMicros(duration));
+                writer.write(",\"pid\":");
+                writer.write(Integer.toString(pid));
+                writer.write(",\"tid\":");
+                writer.write(Integer.toString(threadId));
+                writer.write('}');
+            }
+
+            writer.write("],\"displayTimeUnit\":\"ms\"}");
+        } finally {
+            writer.close();
+        }
+    }
+
+    // trace_event timestamps are in microseconds
+    private static String formatMicros(long nanos) {
+        return (nanos / 1000) + "." + String.format(Locale.US, "%03d", nanos % 1000);
+    }
+}
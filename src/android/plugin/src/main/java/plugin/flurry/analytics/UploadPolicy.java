@@ -0,0 +1,131 @@
+//
+// UploadPolicy.java
+// Flurry Plugin
+//
+// Copyright (c) 2016 CoronaLabs inc. All rights reserved.
+//
+
+package plugin.flurry.analytics;
+
+// imports
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Build;
+
+/**
+ * Decides when held back non-critical events are handed to the Flurry SDK.
+ * <p>
+ * Events are released while the app is idle (suspended), the network is unmetered or the device is
+ * charging, and at the latest after the maximum hold time. Only used from the scheduler thread,
+ * except for setAppIdle().
+ */
+final class UploadPolicy {
+    // device state queries go through system services, don't repeat them on every drain
+    private static final long DEVICE_STATE_CHECK_INTERVAL_MS = 10000;
+
+    /**
+     * Source of network and power state. Replaced by a FixedDeviceState to test the policy offline.
+     */
+    interface DeviceState {
+        boolean isUnmetered();
+
+        boolean isCharging();
+    }
+
+    // real device state from the Android system services
+    static final class AndroidDeviceState implements DeviceState {
+        private final Context context;
+
+        AndroidDeviceState(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @Override
+        public boolean isUnmetered() {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if ((connectivityManager == null) || (Build.VERSION.SDK_INT < 16)) {
+                return false;
+            }
+
+            return (connectivityManager.getActiveNetworkInfo() != null) && !connectivityManager.isActiveNetworkMetered();
+        }
+
+        @Override
+        public boolean isCharging() {
+            // sticky broadcast, no receiver is registered
+            Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            return (batteryStatus != null) && (batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+        }
+    }
+
+    // simulated device state (set with the simulatedDeviceState init option)
+    static final class FixedDeviceState implements DeviceState {
+        private final boolean isUnmetered;
+        private final boolean isCharging;
+
+        FixedDeviceState(boolean isUnmetered, boolean isCharging) {
+            this.isUnmetered = isUnmetered;
+            this.isCharging = isCharging;
+        }
+
+        @Override
+        public boolean isUnmetered() {
+            return isUnmetered;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return isCharging;
+        }
+    }
+
+    private final DeviceState deviceState;
+    private final long maxHoldMs;
+    private volatile boolean isAppIdle = false;
+
+    private boolean hasStarted = false;
+    private long lastReleaseAt;
+    private long lastDeviceCheckAt;
+    private boolean isDeviceReady = false;
+
+    UploadPolicy(DeviceState deviceState, long maxHoldMs) {
+        this.deviceState = deviceState;
+        this.maxHoldMs = maxHoldMs;
+    }
+
+    void setAppIdle(boolean isAppIdle) {
+        this.isAppIdle = isAppIdle;
+    }
+
+    /**
+     * Returns true if held events should be handed to the SDK now.
+     */
+    boolean shouldRelease(long now) {
+        if (!hasStarted) {
+            hasStarted = true;
+            lastReleaseAt = now;
+            lastDeviceCheckAt = now - DEVICE_STATE_CHECK_INTERVAL_MS;
+        }
+
+        if ((now - lastDeviceCheckAt) >= DEVICE_STATE_CHECK_INTERVAL_MS) {
+            lastDeviceCheckAt = now;
+            try {
+                isDeviceReady = deviceState.isUnmetered() || deviceState.isCharging();
+            } catch (Exception ex) {
+                // e.g. missing permission, fall back to the hold time
+                isDeviceReady = false;
+            }
+        }
+
+        if (isAppIdle || isDeviceReady || ((now - lastReleaseAt) >= maxHoldMs)) {
+            lastReleaseAt = now;
+            return true;
+        }
+
+        return false;
+    }
+}